@@ -0,0 +1,341 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Quarantines a failing or slow {@link ServletInstrumentation}.
+ *
+ * The breaker counts calls, failures and time spent in the instrumentation
+ * with lock-free counters.  At the end of each window it trips if the
+ * failure rate or the mean latency exceeded its threshold.  A tripped
+ * breaker skips the instrumentation until a backoff has passed, then lets a
+ * single probe call through: if the probe succeeds the breaker closes,
+ * otherwise the backoff doubles (up to a maximum).  Only the call holding
+ * the {@link Permit#PROBE} permit decides the outcome; calls that started
+ * before the trip and end while the breaker is not closed are only
+ * counted.  Failures are logged at most once per log interval, with a count
+ * of the suppressed ones.
+ *
+ * All times are {@link System#nanoTime()} values.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  /**
+   * The breaker states.
+   */
+  public enum State {
+    /** The instrumentation runs. */
+    CLOSED,
+    /** The instrumentation is quarantined. */
+    OPEN,
+    /** A single probe call is running. */
+    HALF_OPEN
+  }
+
+  /**
+   * What {@link #acquire(long)} allows the caller to do.
+   */
+  public enum Permit {
+    /** Skip the instrumentation. */
+    DENIED,
+    /** Run the instrumentation. */
+    CALL,
+    /** Run the instrumentation as the probe of a tripped breaker. */
+    PROBE
+  }
+
+  /**
+   * Thresholds shared by all breakers, from the
+   * {@code httpservlet_transaction_namer.circuit_breaker} section.
+   */
+  public static final class Settings {
+
+    private static final String PREFIX = "httpservlet_transaction_namer.circuit_breaker.";
+
+    private final boolean enabled;
+    private final double maxFailureRate;
+    private final long minCalls;
+    private final long maxMeanLatencyNanos;
+    private final long windowNanos;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long logIntervalNanos;
+
+    public Settings(
+        boolean enabled,
+        double maxFailureRate,
+        long minCalls,
+        long maxMeanLatencyMillis,
+        long windowSeconds,
+        long initialBackoffSeconds,
+        long maxBackoffSeconds,
+        long logIntervalSeconds
+    ) {
+      this.enabled = enabled;
+      this.maxFailureRate = maxFailureRate;
+      this.minCalls = minCalls;
+      this.maxMeanLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxMeanLatencyMillis);
+      this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+      this.initialBackoffNanos = TimeUnit.SECONDS.toNanos(initialBackoffSeconds);
+      this.maxBackoffNanos = TimeUnit.SECONDS.toNanos(maxBackoffSeconds);
+      this.logIntervalNanos = TimeUnit.SECONDS.toNanos(logIntervalSeconds);
+    }
+
+    /**
+     * @return the default settings.
+     */
+    public static Settings defaults() {
+      return new Settings(true, 0.5, 20, 100, 10, 10, 600, 60);
+    }
+
+    public static Settings fromConfig(Config config) {
+      Object enabled = config.getValue(PREFIX + "enabled");
+      return new Settings(
+          enabled == null || Utilities.checkBoolean(enabled),
+          Utilities.getDouble(config.getValue(PREFIX + "failure_rate"), 0.5),
+          Utilities.getLong(config.getValue(PREFIX + "min_calls"), 20),
+          Utilities.getLong(config.getValue(PREFIX + "max_mean_latency_millis"), 100),
+          Utilities.getLong(config.getValue(PREFIX + "window_seconds"), 10),
+          Utilities.getLong(config.getValue(PREFIX + "initial_backoff_seconds"), 10),
+          Utilities.getLong(config.getValue(PREFIX + "max_backoff_seconds"), 600),
+          Utilities.getLong(config.getValue(PREFIX + "log_interval_seconds"), 60)
+      );
+    }
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+  }
+
+  private final String name;
+  private final Settings settings;
+
+  private final AtomicInteger state = new AtomicInteger(State.CLOSED.ordinal());
+  private final AtomicLong windowStart;
+  private final LongAdder windowCalls = new LongAdder();
+  private final LongAdder windowFailures = new LongAdder();
+  private final LongAdder windowNanos = new LongAdder();
+  private volatile long retryAt;
+  private volatile long backoffNanos;
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder quarantines = new LongAdder();
+
+  private final AtomicLong lastLog;
+  private final LongAdder suppressedLogs = new LongAdder();
+
+  public CircuitBreaker(String name, Settings settings, long now) {
+    this.name = name;
+    this.settings = settings;
+    this.windowStart = new AtomicLong(now);
+    this.lastLog = new AtomicLong(now - settings.logIntervalNanos);
+    this.backoffNanos = settings.initialBackoffNanos;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public State getState() {
+    return State.values()[state.get()];
+  }
+
+  /**
+   * Return whether the instrumentation may run now.  Always
+   * {@link Permit#CALL} while the breaker is closed; after the backoff of a
+   * tripped breaker {@link Permit#PROBE} for exactly one call.
+   *
+   * @param now the current time.
+   * @return the permit to pass to {@link #onSuccess} or {@link #onFailure}.
+   */
+  public Permit acquire(long now) {
+    int current = state.get();
+    if (current == State.CLOSED.ordinal()) {
+      return Permit.CALL;
+    }
+    if (current == State.OPEN.ordinal()
+        && now - retryAt >= 0
+        && state.compareAndSet(current, State.HALF_OPEN.ordinal())) {
+      return Permit.PROBE;
+    }
+    skipped.increment();
+    return Permit.DENIED;
+  }
+
+  /**
+   * Record a call that completed normally.
+   *
+   * @param permit the permit the call ran with.
+   * @param start the time the call started.
+   * @param end the time the call ended.
+   */
+  public void onSuccess(Permit permit, long start, long end) {
+    long nanos = record(start, end);
+    if (permit == Permit.PROBE) {
+      if (settings.maxMeanLatencyNanos > 0 && nanos > settings.maxMeanLatencyNanos) {
+        trip(end, "probe took " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+      } else {
+        close();
+      }
+      return;
+    }
+    evaluateWindow(end);
+  }
+
+  /**
+   * Record a call that threw {@code failure}.
+   *
+   * @param permit the permit the call ran with.
+   * @param failure what the instrumentation threw.
+   * @param start the time the call started.
+   * @param end the time the call ended.
+   */
+  public void onFailure(Permit permit, Throwable failure, long start, long end) {
+    record(start, end);
+    failures.increment();
+    windowFailures.increment();
+    logFailure(failure, end);
+
+    if (permit == Permit.PROBE) {
+      trip(end, "probe failed");
+      return;
+    }
+    evaluateWindow(end);
+  }
+
+  private long record(long start, long end) {
+    long nanos = end - start;
+    calls.increment();
+    windowCalls.increment();
+    windowNanos.add(nanos);
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    return nanos;
+  }
+
+  private void evaluateWindow(long now) {
+    // Calls that end while the breaker is tripped must not trip it again.
+    if (state.get() != State.CLOSED.ordinal()) {
+      return;
+    }
+    long start = windowStart.get();
+    if (now - start < settings.windowNanos || !windowStart.compareAndSet(start, now)) {
+      return;
+    }
+    long windowCallCount = windowCalls.sumThenReset();
+    long windowFailureCount = windowFailures.sumThenReset();
+    long windowNanoCount = windowNanos.sumThenReset();
+    if (!settings.enabled || windowCallCount < settings.minCalls) {
+      return;
+    }
+
+    double failureRate = (double) windowFailureCount / windowCallCount;
+    long meanNanos = windowNanoCount / windowCallCount;
+    if (failureRate >= settings.maxFailureRate) {
+      trip(now, String.format("failure rate %.0f%% over %d calls", failureRate * 100, windowCallCount));
+    } else if (settings.maxMeanLatencyNanos > 0 && meanNanos > settings.maxMeanLatencyNanos) {
+      trip(now, "mean latency " + TimeUnit.NANOSECONDS.toMillis(meanNanos) + " ms over " + windowCallCount + " calls");
+    }
+  }
+
+  private void trip(long now, String reason) {
+    int previous = state.getAndSet(State.OPEN.ordinal());
+    long backoff = backoffNanos;
+    if (previous == State.HALF_OPEN.ordinal()) {
+      backoff = Math.min(backoff * 2, settings.maxBackoffNanos);
+      backoffNanos = backoff;
+    }
+    retryAt = now + backoff;
+    if (previous != State.OPEN.ordinal()) {
+      quarantines.increment();
+      LOGGER.log(
+          Level.WARNING,
+          "HTTPServlet-transaction-namer - Circuit Breaker - quarantined instrumentation {0} for {1} s: {2}",
+          name,
+          TimeUnit.NANOSECONDS.toSeconds(backoff),
+          reason
+      );
+    }
+  }
+
+  private void close() {
+    backoffNanos = settings.initialBackoffNanos;
+    windowCalls.reset();
+    windowFailures.reset();
+    windowNanos.reset();
+    if (state.getAndSet(State.CLOSED.ordinal()) != State.CLOSED.ordinal()) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Circuit Breaker - instrumentation {0} recovered", name);
+    }
+  }
+
+  private void logFailure(Throwable failure, long now) {
+    long last = lastLog.get();
+    if (now - last < settings.logIntervalNanos || !lastLog.compareAndSet(last, now)) {
+      suppressedLogs.increment();
+      return;
+    }
+    LOGGER.log(
+        Level.WARNING,
+        failure,
+        "HTTPServlet-transaction-namer - Circuit Breaker - instrumentation {0} threw an exception ({1} similar messages suppressed): {2}",
+        name,
+        suppressedLogs.sumThenReset(),
+        failure.toString()
+    );
+  }
+
+  /**
+   * Close the breaker and reset all statistics.
+   */
+  public void reset() {
+    close();
+    calls.reset();
+    failures.reset();
+    skipped.reset();
+    totalNanos.reset();
+    maxNanos.reset();
+    quarantines.reset();
+  }
+
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return how often the instrumentation was skipped while quarantined.
+   */
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public long getQuarantines() {
+    return quarantines.sum();
+  }
+}
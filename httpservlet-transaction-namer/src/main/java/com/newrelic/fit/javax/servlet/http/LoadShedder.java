@@ -0,0 +1,198 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Chooses how much work {@link TransactionNamer} may spend naming a request.
+ *
+ * Request threads only increment a counter and, for a sample of requests,
+ * add the time spent naming.  Sampled requests are named with all rules in
+ * every mode, so the measured cost is that of {@link Mode#FULL} even while
+ * degraded, and stepping back up cannot push it over the threshold again.
+ * {@link #adjust()} runs periodically on the background thread: if the
+ * request rate or the mean naming cost of the last interval is above its
+ * threshold the mode steps down one level; once both stayed below
+ * {@code recovery_ratio} times their threshold for
+ * {@code recovery_intervals} intervals in a row it steps back up one level.
+ */
+public class LoadShedder {
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  private static final String METRIC_PREFIX = "Custom/HTTPServlet-transaction-namer/LoadShedding/";
+
+  /**
+   * The naming modes, from the most to the least expensive.
+   */
+  public enum Mode {
+    /** Run all rules. */
+    FULL,
+    /** Use cached names only; name cache misses like {@link #PREFIX_ONLY}. */
+    CACHE_ONLY,
+    /** Name by the literal prefix of the first rule the URI starts with. */
+    PREFIX_ONLY,
+    /** Use the fixed fallback name. */
+    FALLBACK
+  }
+
+  private final long maxRequestsPerSecond;
+  private final long maxNamingNanos;
+  private final int sampleRate;
+  private final double recoveryRatio;
+  private final int recoveryIntervals;
+  private final Mode lowestMode;
+  private final String fallbackName;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder samples = new LongAdder();
+  private final LongAdder sampledNanos = new LongAdder();
+
+  private volatile Mode mode = Mode.FULL;
+  private int calmIntervals;
+  private long lastAdjust = System.nanoTime();
+
+  public LoadShedder(
+      long maxRequestsPerSecond,
+      long maxNamingMicros,
+      int sampleRate,
+      double recoveryRatio,
+      int recoveryIntervals,
+      Mode lowestMode,
+      String fallbackName
+  ) {
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.maxNamingNanos = TimeUnit.MICROSECONDS.toNanos(maxNamingMicros);
+    this.sampleRate = sampleRate;
+    this.recoveryRatio = recoveryRatio;
+    this.recoveryIntervals = recoveryIntervals;
+    this.lowestMode = lowestMode;
+    this.fallbackName = fallbackName;
+  }
+
+  /**
+   * Create the load shedder configured below {@code prefix}.
+   *
+   * @param config the New Relic Agent configuration.
+   * @param prefix the configuration prefix, e.g.
+   * {@code httpservlet_transaction_namer.load_shedding}.
+   * @return the load shedder.
+   */
+  public static LoadShedder fromConfig(Config config, String prefix) {
+    Mode lowestMode = Mode.FALLBACK;
+    Object lowestLevel = config.getValue(prefix + ".lowest_level");
+    if (lowestLevel != null) {
+      try {
+        lowestMode = Mode.valueOf(lowestLevel.toString().trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Load Shedding - lowest_level is not one of [FULL, CACHE_ONLY, PREFIX_ONLY, FALLBACK]: " + lowestLevel);
+      }
+    }
+    Object fallbackName = config.getValue(prefix + ".fallback_name");
+    return new LoadShedder(
+        Utilities.getLong(config.getValue(prefix + ".max_requests_per_second"), 0),
+        Utilities.getLong(config.getValue(prefix + ".max_naming_micros"), 200),
+        (int) Math.max(1, Utilities.getLong(config.getValue(prefix + ".sample_rate"), 16)),
+        Utilities.getDouble(config.getValue(prefix + ".recovery_ratio"), 0.7),
+        (int) Utilities.getLong(config.getValue(prefix + ".recovery_intervals"), 3),
+        lowestMode,
+        fallbackName == null ? "/degraded" : fallbackName.toString()
+    );
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public String getFallbackName() {
+    return fallbackName;
+  }
+
+  /**
+   * Count a request, whether or not it is named by the rules.
+   */
+  public void onRequest() {
+    requests.increment();
+  }
+
+  /**
+   * @return whether to name a request with all rules and measure the cost.
+   */
+  public boolean sample() {
+    return sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+  }
+
+  /**
+   * Record the naming cost of a sampled request.
+   *
+   * @param nanos the time spent naming the request.
+   */
+  public void recordCost(long nanos) {
+    samples.increment();
+    sampledNanos.add(nanos);
+  }
+
+  /**
+   * Compare the last interval to the thresholds and change the mode.  Only
+   * called from a single thread.
+   */
+  public void adjust() {
+    long now = System.nanoTime();
+    long elapsed = now - lastAdjust;
+    lastAdjust = now;
+    adjust(elapsed);
+  }
+
+  Mode adjust(long elapsedNanos) {
+    double requestsPerSecond = requests.sumThenReset() * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+    long sampleCount = samples.sumThenReset();
+    long totalNanos = sampledNanos.sumThenReset();
+    long namingNanos = sampleCount == 0 ? 0 : totalNanos / sampleCount;
+
+    boolean overRate = maxRequestsPerSecond > 0 && requestsPerSecond > maxRequestsPerSecond;
+    boolean overCost = maxNamingNanos > 0 && namingNanos > maxNamingNanos;
+    boolean calm = (maxRequestsPerSecond <= 0 || requestsPerSecond < maxRequestsPerSecond * recoveryRatio)
+        && (maxNamingNanos <= 0 || namingNanos < maxNamingNanos * recoveryRatio);
+
+    Mode current = mode;
+    Mode next = current;
+    if (overRate || overCost) {
+      calmIntervals = 0;
+      if (current.ordinal() < lowestMode.ordinal()) {
+        next = Mode.values()[current.ordinal() + 1];
+      }
+    } else if (calm && current != Mode.FULL) {
+      if (++calmIntervals >= recoveryIntervals) {
+        calmIntervals = 0;
+        next = Mode.values()[current.ordinal() - 1];
+      }
+    } else {
+      calmIntervals = 0;
+    }
+
+    if (next != current) {
+      mode = next;
+      LOGGER.log(
+          next.ordinal() > current.ordinal() ? Level.WARNING : Level.INFO,
+          "HTTPServlet-transaction-namer - Load Shedding - naming mode changed from {0} to {1} ({2} requests/s, {3} us per request)",
+          current,
+          next,
+          Math.round(requestsPerSecond),
+          TimeUnit.NANOSECONDS.toMicros(namingNanos)
+      );
+    }
+
+    NewRelic.recordMetric(METRIC_PREFIX + "Level", next.ordinal());
+    NewRelic.recordMetric(METRIC_PREFIX + "RequestsPerSecond", (float) requestsPerSecond);
+    if (sampleCount > 0) {
+      NewRelic.recordMetric(METRIC_PREFIX + "NamingMicros", namingNanos / 1000f);
+    }
+    return next;
+  }
+}
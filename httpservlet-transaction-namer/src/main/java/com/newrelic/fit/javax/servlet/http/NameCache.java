@@ -0,0 +1,279 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of (normalized) URI to transaction name mappings.
+ *
+ * The cache only holds the result of the grouping and obfuscation rules,
+ * which depend on the URI alone.  Once {@code maxEntries} is reached new
+ * URIs are not added until {@link #evictIdle()} has made room.
+ *
+ * Names loaded from a {@link NamingSnapshot} are keyed by the hash of their
+ * URI, see {@link #hash(String)}, and become regular entries the first time
+ * a URI with that hash is looked up.
+ */
+public class NameCache {
+
+  /**
+   * A cached name, the rules that produced it and how often it was used.
+   */
+  public static final class Entry {
+
+    private final String uri;
+    private final long uriHash;
+    private final String name;
+    private final int groupRule;
+    private final int obfuscationRule;
+    private final LongAdder hits = new LongAdder();
+    private volatile long lastHits;
+
+    private Entry(String uri, long uriHash, String name, int groupRule, int obfuscationRule, long hits) {
+      this.uri = uri;
+      this.uriHash = uriHash;
+      this.name = name;
+      this.groupRule = groupRule;
+      this.obfuscationRule = obfuscationRule;
+      this.hits.add(hits);
+    }
+
+    /**
+     * @return the URI, or {@code null} for a loaded name whose URI was not
+     * looked up yet.
+     */
+    public String getUri() {
+      return uri;
+    }
+
+    /**
+     * @return the hash of the URI, see {@link NameCache#hash(String)}.
+     */
+    public long getUriHash() {
+      return uri == null ? uriHash : hash(uri);
+    }
+
+    /**
+     * @return the name, or {@code null} if the name is the URI itself and
+     * the URI is not known.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the index of the grouping rule applied to the URI, or -1.
+     */
+    public int getGroupRule() {
+      return groupRule;
+    }
+
+    /**
+     * @return the index of the obfuscation rule applied to the URI, or -1.
+     */
+    public int getObfuscationRule() {
+      return obfuscationRule;
+    }
+
+    /**
+     * @return whether the rules left the URI unchanged.
+     */
+    public boolean isUnchanged() {
+      return uri == null ? name == null : uri.equals(name);
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries;
+  private final ConcurrentHashMap<Long, Entry> loaded = new ConcurrentHashMap<Long, Entry>();
+  private final int maxEntries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public NameCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new ConcurrentHashMap<String, Entry>(Math.min(maxEntries, 1024));
+  }
+
+  /**
+   * Look up the name of {@code uri}.
+   *
+   * @param uri the URI.
+   * @return the cached name, or {@code null}.
+   */
+  public String get(String uri) {
+    Entry entry = lookup(uri);
+    return entry == null ? null : entry.name;
+  }
+
+  /**
+   * Look up the entry of {@code uri}, counting it like {@link #get(String)}.
+   *
+   * @param uri the URI.
+   * @return the entry, or {@code null}.
+   */
+  public Entry lookup(String uri) {
+    Entry entry = entries.get(uri);
+    if (entry == null && !loaded.isEmpty()) {
+      entry = promote(uri);
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    entry.hits.increment();
+    return entry;
+  }
+
+  /**
+   * Turn the loaded name of {@code uri}, if any, into a regular entry.
+   */
+  private Entry promote(String uri) {
+    Entry snapshot = loaded.remove(hash(uri));
+    if (snapshot == null) {
+      return null;
+    }
+    Entry entry = new Entry(uri, 0, snapshot.name == null ? uri : snapshot.name,
+        snapshot.groupRule, snapshot.obfuscationRule, snapshot.getHits());
+    if (entries.size() < maxEntries) {
+      Entry previous = entries.putIfAbsent(uri, entry);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Cache the {@code name} of {@code uri}, unless the cache is full.
+   *
+   * @param uri the URI.
+   * @param name the name.
+   */
+  public void put(String uri, String name) {
+    put(uri, name, -1, -1);
+  }
+
+  /**
+   * Cache the {@code name} of {@code uri} and the rules that produced it,
+   * unless the cache is full.
+   *
+   * @param uri the URI.
+   * @param name the name.
+   * @param groupRule the index of the grouping rule applied, or -1.
+   * @param obfuscationRule the index of the obfuscation rule applied, or -1.
+   */
+  public void put(String uri, String name, int groupRule, int obfuscationRule) {
+    if (entries.size() < maxEntries) {
+      entries.putIfAbsent(uri, new Entry(uri, 0, name, groupRule, obfuscationRule, 1));
+    }
+  }
+
+  /**
+   * Add a name loaded from a snapshot.
+   *
+   * @param uriHash the hash of the URI.
+   * @param name the name, or {@code null} if it is the URI itself.
+   * @param groupRule the index of the grouping rule applied, or -1.
+   * @param obfuscationRule the index of the obfuscation rule applied, or -1.
+   * @param initialHits the hits of the name.
+   */
+  void putLoaded(long uriHash, String name, int groupRule, int obfuscationRule, long initialHits) {
+    if (entries.size() + loaded.size() < maxEntries) {
+      loaded.putIfAbsent(uriHash, new Entry(null, uriHash, name, groupRule, obfuscationRule, initialHits));
+    }
+  }
+
+  /**
+   * Hash a URI for {@link #putLoaded}.
+   *
+   * @param uri the URI.
+   * @return the 64-bit FNV-1a hash of the URI.
+   */
+  public static long hash(String uri) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < uri.length(); i++) {
+      hash ^= uri.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Remove the entries that were not used since the previous call.
+   *
+   * @return the number of entries removed.
+   */
+  public int evictIdle() {
+    int evicted = 0;
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      Entry entry = it.next();
+      long current = entry.getHits();
+      if (current == entry.lastHits) {
+        it.remove();
+        evicted++;
+      } else {
+        entry.lastHits = current;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Return the {@code limit} most used entries, most used first, including
+   * loaded names whose URI was not looked up yet.
+   *
+   * @param limit the maximum number of entries.
+   * @return the hottest entries.
+   */
+  public List<Entry> hottest(int limit) {
+    List<Entry> list = new ArrayList<Entry>(entries.values());
+    list.addAll(loaded.values());
+    Collections.sort(list, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(b.getHits(), a.getHits());
+      }
+    });
+    return list.size() > limit ? list.subList(0, limit) : list;
+  }
+
+  public void clear() {
+    entries.clear();
+    loaded.clear();
+  }
+
+  /**
+   * @return the number of entries, not counting loaded names whose URI was
+   * not looked up yet.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+  }
+}
@@ -0,0 +1,807 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * The compiled, ordered naming rules of a {@link TransactionNamer}.
+ *
+ * A pipeline is compiled once from the {@code rules} list and the legacy
+ * {@code name_grouper}, {@code name_obfuscator} and
+ * {@code append_parameters} sections of the configuration.  Per request it
+ * produces the transaction name, the obfuscated attributes and the
+ * appended segments in one {@link #evaluate} call.
+ *
+ * Rules are evaluated in order against the current name.  At most one
+ * {@code group} and one {@code obfuscate} rule is applied per name: the
+ * first of each kind that matches.  Rules read from and write to two
+ * reusable per-thread buffers with per-thread matchers, so no intermediate
+ * {@link String} is created and only a changed name is copied out.
+ */
+public class NamingPipeline {
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  /**
+   * Buffers larger than this are not kept between requests.
+   */
+  private static final int MAX_BUFFER_CAPACITY = 4096;
+
+  /**
+   * Rule evaluation times are measured on one in this many names per
+   * thread.
+   */
+  private static final int TIMING_SAMPLE_INTERVAL = 16;
+
+  /**
+   * The outcome of evaluating a request.
+   */
+  public static final class Result {
+
+    private final String name;
+    private final String uriAttribute;
+    private final String refererAttribute;
+    private final String appended;
+
+    Result(String name, String uriAttribute, String refererAttribute, String appended) {
+      this.name = name;
+      this.uriAttribute = uriAttribute;
+      this.refererAttribute = refererAttribute;
+      this.appended = appended;
+    }
+
+    /**
+     * @return the grouped and obfuscated name.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the obfuscated URI attribute, or {@code null} if obfuscation
+     * is disabled.
+     */
+    public String getUriAttribute() {
+      return uriAttribute;
+    }
+
+    /**
+     * @return the obfuscated referer attribute, or {@code null}.
+     */
+    public String getRefererAttribute() {
+      return refererAttribute;
+    }
+
+    /**
+     * @return the appended parameter values joined with {@code /}, or an
+     * empty string.
+     */
+    public String getAppended() {
+      return appended;
+    }
+  }
+
+  /**
+   * A request parameter, cookie or header to append to the name.
+   */
+  public static final class AppendRule {
+
+    private final String name;
+    private final String type;
+    private final int queryIndex;
+    private final ValueBucketer bucketer;
+
+    AppendRule(String name, String type, int queryIndex) {
+      this(name, type, queryIndex, null);
+    }
+
+    AppendRule(String name, String type, int queryIndex, ValueBucketer bucketer) {
+      this.name = name;
+      this.type = type;
+      this.queryIndex = queryIndex;
+      this.bucketer = bucketer;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    /**
+     * @return the index of this parameter in the query string lookup, or
+     * -1 if the value does not come from the query string.
+     */
+    public int getQueryIndex() {
+      return queryIndex;
+    }
+
+    /**
+     * @return the value bucketer, or {@code null} if values are appended
+     * unchanged.
+     */
+    public ValueBucketer getBucketer() {
+      return bucketer;
+    }
+
+    String value(HttpServletRequest request, RequestView view, String[] queryValues) {
+      String value = view == null ? lookup(request, queryValues) : lookup(view, queryValues);
+      if (bucketer == null || value == null || value.isEmpty()) {
+        return value;
+      }
+      return bucketer.bucket(value);
+    }
+
+    private String lookup(RequestView view, String[] queryValues) {
+      if (queryIndex >= 0) {
+        return queryValues[queryIndex];
+      } else if (type.equals("header")) {
+        return view.getHeader(name);
+      } else if (type.equals("cookie")) {
+        return view.getCookie(name);
+      } else if (type.equals("parameter")) {
+        return view.getRequest().getParameter(name);
+      }
+      return null;
+    }
+
+    private String lookup(HttpServletRequest request, String[] queryValues) {
+      if (queryIndex >= 0) {
+        return queryValues[queryIndex];
+      } else if (type.equals("header")) {
+        return request.getHeader(name);
+      } else if (type.equals("cookie")) {
+        String value = null;
+        Cookie[] requestCookies = request.getCookies();
+        if (requestCookies != null) {
+          for (Cookie cIsForCookie : requestCookies) {
+            if (cIsForCookie.getName().equalsIgnoreCase(name)) {
+              value = cIsForCookie.getValue();
+            }
+          }
+        }
+        return value;
+      } else if (type.equals("parameter")) {
+        return request.getParameter(name);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A configured parameter, before query string lookups are assigned.
+   */
+  private static final class Parameter {
+
+    private final String name;
+    private final String type;
+    private final ValueBucketer bucketer;
+
+    Parameter(String name, String type, ValueBucketer bucketer) {
+      this.name = name;
+      this.type = type;
+      this.bucketer = bucketer;
+    }
+  }
+
+  /**
+   * Per-thread scratch space: two buffers the rules alternate between and
+   * a matcher per rule.
+   */
+  private static final class Scratch {
+
+    private final StringBuilder[] buffers = { new StringBuilder(128), new StringBuilder(128) };
+    private final Matcher[] matchers;
+    private int untilTimed;
+    // The rules applied by the last transform, for the name cache.
+    private int groupRule = -1;
+    private int obfuscationRule = -1;
+
+    Scratch(int rules) {
+      matchers = new Matcher[rules];
+    }
+
+    StringBuilder buffer(int index) {
+      StringBuilder buffer = buffers[index];
+      if (buffer.capacity() > MAX_BUFFER_CAPACITY) {
+        buffer = new StringBuilder(128);
+        buffers[index] = buffer;
+      }
+      buffer.setLength(0);
+      return buffer;
+    }
+
+    Matcher matcher(int index, NamingRule rule, CharSequence input) {
+      Matcher matcher = matchers[index];
+      if (matcher == null) {
+        matcher = rule.getPattern().matcher(input);
+        matchers[index] = matcher;
+        return matcher;
+      }
+      return matcher.reset(input);
+    }
+  }
+
+  private final NamingRule[] rules;
+  private final AppendRule[] appendRules;
+  private final String[] queryParameterNames;
+  private final boolean obfuscating;
+  private final ThreadLocal<Scratch> scratch;
+  private volatile NameCache cache;
+
+  public NamingPipeline(List<NamingRule> rules, List<AppendRule> appendRules, String[] queryParameterNames) {
+    this.rules = rules.toArray(new NamingRule[rules.size()]);
+    this.appendRules = appendRules.toArray(new AppendRule[appendRules.size()]);
+    this.queryParameterNames = queryParameterNames;
+
+    boolean hasObfuscation = false;
+    for (NamingRule rule : this.rules) {
+      hasObfuscation |= rule.getKind() == NamingRule.Kind.OBFUSCATE;
+    }
+    this.obfuscating = hasObfuscation;
+
+    final int ruleCount = this.rules.length;
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(ruleCount));
+  }
+
+  /**
+   * Compile the pipeline configured below {@code prefix}.
+   *
+   * The {@code rules} list is compiled first.  The legacy
+   * {@code name_grouper}, {@code name_obfuscator} and
+   * {@code append_parameters} sections are translated into rules appended
+   * after it: grouping rules, then obfuscation rules, then parameters.
+   *
+   * @param config the New Relic Agent configuration.
+   * @param prefix the configuration prefix, e.g.
+   * {@code httpservlet_transaction_namer}.
+   * @return the compiled pipeline.
+   */
+  public static NamingPipeline compile(Config config, String prefix) {
+    List<NamingRule> rules = new ArrayList<NamingRule>();
+    List<Parameter> parameters = new ArrayList<Parameter>();
+
+    compileRules(config.getValue(prefix + ".rules"), rules, parameters);
+
+    if (Utilities.checkBoolean(config.getValue(prefix + ".name_grouper.enabled"))) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Name Grouper - Enabled.");
+      compilePatterns(NamingRule.Kind.GROUP, config.getValue(prefix + ".name_grouper.patterns"), rules);
+    }
+    if (Utilities.checkBoolean(config.getValue(prefix + ".name_obfuscator.enabled"))) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Name Obfuscator - Enabled.");
+      compilePatterns(NamingRule.Kind.OBFUSCATE, config.getValue(prefix + ".name_obfuscator.patterns"), rules);
+    }
+    if (Utilities.checkBoolean(config.getValue(prefix + ".append_parameters.enabled"))) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Append Parameters - Enabled.");
+      compileParameters(config.getValue(prefix + ".append_parameters.parameters"), parameters);
+    }
+
+    boolean queryStringOnly = Utilities.checkBoolean(
+        config.getValue(prefix + ".append_parameters.query_string_only")
+    );
+    if (queryStringOnly) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Append Parameters - \"parameter\" values will be read from the query string only.");
+    }
+
+    List<AppendRule> appendRules = new ArrayList<AppendRule>();
+    List<String> queryNames = new ArrayList<String>();
+    for (Parameter parameter : parameters) {
+      String name = parameter.name;
+      String type = parameter.type;
+      int queryIndex = -1;
+      if ("query".equals(type) || (queryStringOnly && "parameter".equals(type))) {
+        queryIndex = queryNames.indexOf(name);
+        if (queryIndex < 0) {
+          queryIndex = queryNames.size();
+          queryNames.add(name);
+        }
+      } else if (!"header".equals(type) && !"cookie".equals(type) && !"parameter".equals(type)) {
+        LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - parameter type is not one of [cookie, header, parameter, query]: " + type);
+        continue;
+      }
+      appendRules.add(new AppendRule(name, type, queryIndex, parameter.bucketer));
+    }
+
+    return new NamingPipeline(rules, appendRules, queryNames.toArray(new String[queryNames.size()]));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void compileRules(Object rulesObj, List<NamingRule> rules, List<Parameter> parameters) {
+    if (rulesObj == null) {
+      return;
+    }
+    if (!(rulesObj instanceof List)) {
+      LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Rules - use \"rules:\" in newrelic.yml with rules in an indented list.");
+      return;
+    }
+    for (Object ruleObj : (List<Object>) rulesObj) {
+      if (!(ruleObj instanceof Map)) {
+        LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Rules - incorrect syntax for rule. use \"group:\", \"obfuscate:\" or \"append:\" for each rule in an indented list.");
+        continue;
+      }
+      Map<String, Object> ruleMap = (Map<String, Object>) ruleObj;
+      if (ruleMap.get("group") != null) {
+        addRule(NamingRule.Kind.GROUP, String.valueOf(ruleMap.get("group")), rules);
+      } else if (ruleMap.get("obfuscate") != null) {
+        addRule(NamingRule.Kind.OBFUSCATE, String.valueOf(ruleMap.get("obfuscate")), rules);
+      } else if (ruleMap.get("append") != null) {
+        Object source = ruleMap.get("source");
+        addParameter(String.valueOf(ruleMap.get("append")), source == null ? "query" : String.valueOf(source), ruleMap, parameters);
+      } else {
+        LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Rules - incorrect syntax for rule. use \"group:\", \"obfuscate:\" or \"append:\" for each rule in an indented list.");
+      }
+    }
+  }
+
+  private static void compilePatterns(NamingRule.Kind kind, Object patternsObj, List<NamingRule> rules) {
+    List<String> patterns = Utilities.getStringList(patternsObj);
+    if (patterns == null) {
+      LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Rules - " + kind.getKey() + " patterns not defined.");
+      LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Rules - use \"patterns:\" in newrelic.yml with patterns in an indented list, or a space-delimited string.");
+      return;
+    }
+    for (String pattern : patterns) {
+      addRule(kind, pattern, rules);
+    }
+  }
+
+  private static void addRule(NamingRule.Kind kind, String pattern, List<NamingRule> rules) {
+    for (NamingRule rule : rules) {
+      if (rule.getKind() == kind && rule.getSource().equals(pattern)) {
+        return;
+      }
+    }
+    try {
+      rules.add(kind == NamingRule.Kind.GROUP ? NamingRule.group(pattern) : NamingRule.obfuscate(pattern));
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "HTTPServlet-transaction-namer - Rules - invalid " + kind.getKey() + " pattern: " + pattern);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void compileParameters(Object paramsObj, List<Parameter> parameters) {
+    if ((paramsObj == null) || !(paramsObj instanceof List)) {
+      LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - parameters not defined.");
+      LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - use \"parameters:\" in newrelic.yml with parameters in an indented list.");
+      return;
+    }
+    for (Object thisParamObj : (List<Object>) paramsObj) {
+      if ((thisParamObj instanceof Map)
+          && ((Map<String, Object>) thisParamObj).containsKey("name")
+          && ((Map<String, Object>) thisParamObj).containsKey("type")) {
+        Map<String, Object> thisParamMap = (Map<String, Object>) thisParamObj;
+        addParameter(String.valueOf(thisParamMap.get("name")), String.valueOf(thisParamMap.get("type")), thisParamMap, parameters);
+      } else {
+        LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - incorrect syntax for parameter. use \"name:\" and \"type:\" for each parameter in an indented list.");
+      }
+    }
+  }
+
+  private static void addParameter(String name, String type, Map<String, Object> options, List<Parameter> parameters) {
+    for (Parameter parameter : parameters) {
+      if (parameter.name.equals(name) && parameter.type.equals(type)) {
+        return;
+      }
+    }
+    parameters.add(new Parameter(name, type, compileBucketer(name, options)));
+  }
+
+  /**
+   * Compile the {@code allow}, {@code max_length} and {@code top_k} options
+   * of a parameter.
+   *
+   * @return the bucketer, or {@code null} if no option is set.
+   */
+  private static ValueBucketer compileBucketer(String name, Map<String, Object> options) {
+    List<String> allowList = Utilities.getStringList(options.get("allow"));
+    int maxLength = (int) Utilities.getLong(options.get("max_length"), 0);
+    int topK = (int) Utilities.getLong(options.get("top_k"), 0);
+    if (allowList == null && maxLength <= 0 && topK <= 0) {
+      return null;
+    }
+    LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Append Parameters - bucketing values of {0}: allow {1}, max_length {2}, top_k {3}",
+        name, allowList, maxLength, topK);
+    return new ValueBucketer(allowList, maxLength, topK);
+  }
+
+  public List<NamingRule> getRules() {
+    List<NamingRule> list = new ArrayList<NamingRule>(rules.length);
+    for (NamingRule rule : rules) {
+      list.add(rule);
+    }
+    return list;
+  }
+
+  /**
+   * Cache the results of {@link #name(String)} in {@code cache}.
+   *
+   * @param cache the cache, or {@code null} to disable caching.
+   */
+  public void setCache(NameCache cache) {
+    this.cache = cache;
+  }
+
+  public NameCache getCache() {
+    return cache;
+  }
+
+  /**
+   * A fingerprint of the enabled rules.  Cached names are only valid for a
+   * pipeline with the same fingerprint.
+   *
+   * @return the 64-bit FNV-1a hash of the rules.
+   */
+  public long fingerprint() {
+    long hash = 0xcbf29ce484222325L;
+    for (NamingRule rule : rules) {
+      if (!rule.isEnabled()) {
+        continue;
+      }
+      String id = rule.toString();
+      for (int i = 0; i < id.length(); i++) {
+        hash ^= id.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      hash ^= '\n';
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Turn the rule at {@code index} of {@link #getRules()} on or off, and
+   * clear the cache of names computed with the previous rules.
+   *
+   * @param index the rule index.
+   * @param enabled whether the rule is applied.
+   */
+  public void setRuleEnabled(int index, boolean enabled) {
+    NamingRule rule = rules[index];
+    if (rule.isEnabled() == enabled) {
+      return;
+    }
+    rule.setEnabled(enabled);
+    final NameCache cache = this.cache;
+    if (cache != null) {
+      cache.clear();
+    }
+    LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Rules - {0} {1}", rule, enabled ? "enabled" : "disabled");
+  }
+
+  /**
+   * Reset the statistics of all rules and of the cache.
+   */
+  public void resetStatistics() {
+    for (NamingRule rule : rules) {
+      rule.resetStatistics();
+    }
+    final NameCache cache = this.cache;
+    if (cache != null) {
+      cache.resetStatistics();
+    }
+  }
+
+  public List<AppendRule> getParameterRules() {
+    List<AppendRule> list = new ArrayList<AppendRule>(appendRules.length);
+    for (AppendRule rule : appendRules) {
+      list.add(rule);
+    }
+    return list;
+  }
+
+  public boolean isGroupingEnabled() {
+    for (NamingRule rule : rules) {
+      if (rule.getKind() == NamingRule.Kind.GROUP) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean isObfuscationEnabled() {
+    return obfuscating;
+  }
+
+  public boolean isParameterAppendingEnabled() {
+    return appendRules.length > 0;
+  }
+
+  /**
+   * Evaluate all rules for a request.
+   *
+   * @param uri the (normalized) request URI.
+   * @param request the HTTP servlet request.
+   * @return the name, attributes and appended segments.
+   */
+  public Result evaluate(String uri, HttpServletRequest request) {
+    return evaluate(uri, request, null);
+  }
+
+  /**
+   * Evaluate all rules for a request, reading it through a shared view.
+   *
+   * @param uri the (normalized) request URI.
+   * @param view the view of the HTTP servlet request.
+   * @return the name, attributes and appended segments.
+   */
+  public Result evaluate(String uri, RequestView view) {
+    return evaluate(uri, view.getRequest(), view);
+  }
+
+  private Result evaluate(String uri, HttpServletRequest request, RequestView view) {
+    String name = name(uri);
+
+    String uriAttribute = null;
+    String refererAttribute = null;
+    if (obfuscating) {
+      uriAttribute = name;
+      String referer = view == null ? request.getHeader("referer") : view.getHeader("referer");
+      refererAttribute = obfuscateReferer(referer);
+    }
+
+    return new Result(name, uriAttribute, refererAttribute, append(request, view));
+  }
+
+  /**
+   * Apply the grouping and obfuscation rules to {@code uri}.  A cached name
+   * counts a hit for the rules that produced it.
+   *
+   * @param uri the URI.
+   * @return the new name, or {@code uri} itself if no rule applied.
+   */
+  public String name(String uri) {
+    final NameCache cache = this.cache;
+    if (cache == null || uri == null) {
+      return transform(uri, false, false, true);
+    }
+    String name = lookup(cache, uri);
+    if (name == null) {
+      name = transform(uri, false, false, true);
+      final Scratch scratch = this.scratch.get();
+      cache.put(uri, name, scratch.groupRule, scratch.obfuscationRule);
+    }
+    return name;
+  }
+
+  private String lookup(NameCache cache, String uri) {
+    NameCache.Entry entry = cache.lookup(uri);
+    if (entry == null) {
+      return null;
+    }
+    recordCachedHit(entry.getGroupRule());
+    recordCachedHit(entry.getObfuscationRule());
+    return entry.getName();
+  }
+
+  private void recordCachedHit(int index) {
+    // Indices read from a snapshot file are not trusted.
+    if (index >= 0 && index < rules.length) {
+      rules[index].recordHit();
+    }
+  }
+
+  /**
+   * Apply the grouping and obfuscation rules to {@code uri} without using
+   * the cache or counting rule hits, e.g. to compare pipelines.
+   *
+   * @param uri the URI.
+   * @return the new name, or {@code uri} itself if no rule applied.
+   */
+  String evaluateName(String uri) {
+    return transform(uri, false, false, false);
+  }
+
+  /**
+   * Look up the cached name of {@code uri} without running any rule.
+   *
+   * @param uri the URI.
+   * @return the cached name, or {@code null}.
+   */
+  public String cachedName(String uri) {
+    final NameCache cache = this.cache;
+    return cache == null || uri == null ? null : lookup(cache, uri);
+  }
+
+  /**
+   * Name {@code uri} by the literal prefix of the first rule whose literal
+   * it starts with, without running any regular expression.
+   *
+   * @param uri the URI.
+   * @return the literal, or {@code null} if no rule applies.
+   */
+  public String prefixName(String uri) {
+    if (uri == null) {
+      return null;
+    }
+    for (NamingRule rule : rules) {
+      String literal = rule.getLiteral();
+      if (literal != null && rule.isEnabled() && uri.startsWith(literal)) {
+        return literal;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Apply only the grouping rules to {@code uri}.
+   *
+   * @param uri the URI.
+   * @return the grouped URI, or {@code uri} itself if no rule applied.
+   */
+  public String group(String uri) {
+    return transform(uri, false, true, true);
+  }
+
+  /**
+   * Apply only the obfuscation rules to {@code uri}.
+   *
+   * @param uri the URI.
+   * @return the obfuscated URI, or {@code uri} itself if no rule applied.
+   */
+  public String obfuscate(String uri) {
+    return transform(uri, true, false, true);
+  }
+
+  /**
+   * @return the obfuscated referer header of the {@code request}, or
+   * {@code null} if there is none.
+   */
+  public String obfuscateReferer(HttpServletRequest request) {
+    return obfuscateReferer(request.getHeader("referer"));
+  }
+
+  /**
+   * @return the obfuscated referer header of the {@code view}, or
+   * {@code null} if there is none.
+   */
+  public String obfuscateReferer(RequestView view) {
+    return obfuscateReferer(view.getHeader("referer"));
+  }
+
+  /**
+   * Referers are obfuscated without counting rule hits, so the statistics
+   * only describe transaction names.
+   */
+  private String obfuscateReferer(String referer) {
+    return referer == null ? null : transform(referer, true, false, false);
+  }
+
+  private String transform(String uri, boolean skipGrouping, boolean skipObfuscation, boolean recordHits) {
+    if (uri == null || rules.length == 0) {
+      return uri;
+    }
+
+    final boolean isLoggingFiner = LOGGER.isLoggable(Level.FINER);
+    final Scratch scratch = this.scratch.get();
+    scratch.groupRule = -1;
+    scratch.obfuscationRule = -1;
+    CharSequence current = uri;
+    int nextBuffer = 0;
+    boolean grouped = skipGrouping;
+    boolean obfuscated = skipObfuscation;
+
+    boolean timed = false;
+    if (recordHits && --scratch.untilTimed <= 0) {
+      scratch.untilTimed = TIMING_SAMPLE_INTERVAL;
+      timed = true;
+    }
+
+    for (int i = 0; i < rules.length; i++) {
+      NamingRule rule = rules[i];
+      if (!rule.isEnabled() || (rule.getKind() == NamingRule.Kind.GROUP ? grouped : obfuscated)) {
+        continue;
+      }
+
+      final long start = timed ? System.nanoTime() : 0L;
+      StringBuilder out = null;
+      boolean applied = false;
+      if (rule.mayMatch(current)) {
+        out = scratch.buffer(nextBuffer);
+        applied = rule.apply(scratch.matcher(i, rule, current), current, out);
+      }
+      if (timed) {
+        rule.recordTime(System.nanoTime() - start);
+      }
+
+      if (!applied) {
+        if (recordHits) {
+          rule.recordMiss();
+        }
+        continue;
+      }
+
+      if (isLoggingFiner) {
+        LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Rules - {0} applied to {1}: {2}", rule, current, out);
+      }
+      if (recordHits) {
+        rule.recordHit();
+      }
+      current = out;
+      nextBuffer ^= 1;
+      if (rule.getKind() == NamingRule.Kind.GROUP) {
+        grouped = true;
+        scratch.groupRule = i;
+      } else {
+        obfuscated = true;
+        scratch.obfuscationRule = i;
+      }
+      if (grouped && obfuscated) {
+        break;
+      }
+    }
+
+    return current == uri ? uri : current.toString();
+  }
+
+  /**
+   * Return the values of the append rules joined with {@code /}.
+   *
+   * @param request the HTTP servlet request.
+   * @return the appended segments, or an empty string.
+   */
+  public String append(HttpServletRequest request) {
+    return append(request, null);
+  }
+
+  /**
+   * Return the values of the append rules joined with {@code /}, reading
+   * them through a shared view.
+   *
+   * @param view the view of the HTTP servlet request.
+   * @return the appended segments, or an empty string.
+   */
+  public String append(RequestView view) {
+    return append(view.getRequest(), view);
+  }
+
+  private String append(HttpServletRequest request, RequestView view) {
+    if (appendRules.length == 0) {
+      return "";
+    }
+
+    String[] queryValues = null;
+    String single = null;
+    StringBuilder joined = null;
+    for (AppendRule rule : appendRules) {
+      if (rule.getQueryIndex() >= 0 && queryValues == null) {
+        // Parse the query string at most once per request, and only for the
+        // configured names.  Unlike getParameter() this never reads a POST body.
+        if (view == null) {
+          queryValues = new String[queryParameterNames.length];
+          Utilities.findQueryParameters(request.getQueryString(), queryParameterNames, queryValues);
+        } else {
+          queryValues = view.getQueryParameters(queryParameterNames);
+        }
+      }
+      String value = rule.value(request, view, queryValues);
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      if (single == null) {
+        single = value;
+      } else {
+        if (joined == null) {
+          joined = new StringBuilder(single);
+        }
+        joined.append('/').append(value);
+      }
+    }
+
+    if (joined != null) {
+      return joined.toString();
+    }
+    return single == null ? "" : single;
+  }
+}
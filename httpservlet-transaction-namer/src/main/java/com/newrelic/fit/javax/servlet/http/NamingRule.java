@@ -0,0 +1,410 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled rule of a {@link NamingPipeline} that rewrites the transaction
+ * name derived from the request URI.
+ *
+ * Rules are either {@link Kind#GROUP} rules ({@code name_grouper} patterns)
+ * or {@link Kind#OBFUSCATE} rules ({@code name_obfuscator} patterns).  Each
+ * rule carries a literal that any match must contain; it is checked with a
+ * plain {@code indexOf} before the regular expression runs.
+ *
+ * Each rule counts how often it was applied and how often it was evaluated
+ * without applying, and the time spent evaluating it on a sample of names.
+ * A rule can be turned off at runtime.
+ */
+public abstract class NamingRule {
+
+  /**
+   * The kinds of naming rules.
+   */
+  public enum Kind {
+    GROUP("group"),
+    OBFUSCATE("obfuscate");
+
+    private final String key;
+
+    Kind(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return the key of this kind in the {@code rules} configuration.
+     */
+    public String getKey() {
+      return key;
+    }
+  }
+
+  private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<(\\w+)>(.*)\\)");
+
+  private final Kind kind;
+  private final String source;
+  private final Pattern pattern;
+  private final String literal;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder timedEvaluations = new LongAdder();
+  private final LongAdder timedNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+  private volatile boolean enabled = true;
+
+  NamingRule(Kind kind, String source, Pattern pattern) {
+    this.kind = kind;
+    this.source = source;
+    this.pattern = pattern;
+    this.literal = requiredLiteral(pattern.pattern());
+  }
+
+  /**
+   * Compile a {@code name_grouper} pattern.  The capturing groups of the
+   * first match are concatenated to form the new name.
+   *
+   * @param source the pattern as configured.
+   * @return the compiled rule.
+   * @throws java.util.regex.PatternSyntaxException if the pattern is invalid.
+   */
+  public static NamingRule group(String source) {
+    return new GroupRule(source);
+  }
+
+  /**
+   * Compile a {@code name_obfuscator} pattern.  This is either a named
+   * group {@code (?<name>regex)} that replaces every match of
+   * {@code regex} with {@code <name>}, or a template such as
+   * {@code /app/<id>/<name,\w+>} whose placeholder segments are replaced
+   * with {@code <id>} and {@code <name>}.
+   *
+   * @param source the pattern as configured.
+   * @return the compiled rule.
+   * @throws java.util.regex.PatternSyntaxException if the pattern is invalid.
+   */
+  public static NamingRule obfuscate(String source) {
+    Matcher namedGroup = NAMED_GROUP.matcher(source);
+    if (namedGroup.matches()) {
+      return new NamedGroupRule(source, namedGroup.group(1), namedGroup.group(2));
+    }
+    return new TemplateRule(source);
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * @return the pattern as configured.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  public Pattern getPattern() {
+    return pattern;
+  }
+
+  /**
+   * @return the literal every match contains, or {@code null} if unknown.
+   */
+  public String getLiteral() {
+    return literal;
+  }
+
+  /**
+   * @return how often this rule was applied.
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  void recordHit() {
+    hits.increment();
+  }
+
+  void addHits(long count) {
+    hits.add(count);
+  }
+
+  /**
+   * @return how often this rule was evaluated without being applied.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  void recordMiss() {
+    misses.increment();
+  }
+
+  /**
+   * @return the mean time of the sampled evaluations, in nanoseconds.
+   */
+  public long getMeanNanos() {
+    long count = timedEvaluations.sum();
+    return count == 0 ? 0 : timedNanos.sum() / count;
+  }
+
+  /**
+   * @return the longest sampled evaluation, in nanoseconds.
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  void recordTime(long nanos) {
+    timedEvaluations.increment();
+    timedNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+  }
+
+  void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    timedEvaluations.reset();
+    timedNanos.reset();
+    maxNanos.reset();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Use {@link NamingPipeline#setRuleEnabled(int, boolean)}, which also
+   * clears cached names.
+   */
+  void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Override
+  public String toString() {
+    return kind.getKey() + ": " + source;
+  }
+
+  /**
+   * Cheap pre-check: return {@code false} if this rule cannot match
+   * {@code name}.
+   */
+  boolean mayMatch(CharSequence name) {
+    if (literal == null) {
+      return true;
+    }
+    if (name instanceof String) {
+      return ((String) name).indexOf(literal) >= 0;
+    }
+    return ((StringBuilder) name).indexOf(literal) >= 0;
+  }
+
+  /**
+   * Apply the rule to {@code name}, writing the new name to {@code out}.
+   *
+   * @param matcher a matcher of this rule's pattern, reset to {@code name}.
+   * @param name the current name.
+   * @param out the (empty) buffer for the new name.
+   * @return whether the rule matched and produced a new name.
+   */
+  abstract boolean apply(Matcher matcher, CharSequence name, StringBuilder out);
+
+  /**
+   * Concatenates the capturing groups of the first match.
+   */
+  private static final class GroupRule extends NamingRule {
+
+    GroupRule(String source) {
+      super(Kind.GROUP, source, Pattern.compile(source));
+    }
+
+    @Override
+    boolean apply(Matcher matcher, CharSequence name, StringBuilder out) {
+      if (!matcher.find()) {
+        return false;
+      }
+      for (int i = 1; i <= matcher.groupCount(); i++) {
+        int start = matcher.start(i);
+        if (start >= 0) {
+          out.append(name, start, matcher.end(i));
+        }
+      }
+      // A match without (non-empty) groups does not group the name.
+      return out.length() > 0;
+    }
+  }
+
+  /**
+   * Replaces every match with {@code <name>}.
+   */
+  private static final class NamedGroupRule extends NamingRule {
+
+    private final String replacement;
+
+    NamedGroupRule(String source, String name, String regex) {
+      super(Kind.OBFUSCATE, source, Pattern.compile(regex));
+      this.replacement = "<" + name + ">";
+    }
+
+    @Override
+    boolean apply(Matcher matcher, CharSequence name, StringBuilder out) {
+      boolean found = false;
+      int position = 0;
+      while (matcher.find()) {
+        found = true;
+        out.append(name, position, matcher.start()).append(replacement);
+        position = matcher.end();
+      }
+      if (!found) {
+        return false;
+      }
+      out.append(name, position, name.length());
+      return true;
+    }
+  }
+
+  /**
+   * Replaces the placeholder segments of a template with their names.
+   *
+   * Each {@code <name>} or {@code <name,regex>} segment is compiled into a
+   * capturing group matching {@code [^/?#]+} or {@code regex}, so a single
+   * match locates all segments to replace.  The last segment must end at a
+   * segment boundary: the end of the name, or a {@code /}, {@code ?} or
+   * {@code #}, so a trailing slash or further segments are still obfuscated.
+   */
+  private static final class TemplateRule extends NamingRule {
+
+    private final String[] groups;
+    private final String[] replacements;
+
+    TemplateRule(String source) {
+      this(source, new ArrayList<String>());
+    }
+
+    private TemplateRule(String source, List<String> replacements) {
+      super(Kind.OBFUSCATE, source, Pattern.compile(compileTemplate(source, replacements)));
+      this.replacements = replacements.toArray(new String[replacements.size()]);
+      this.groups = new String[this.replacements.length];
+      for (int i = 0; i < groups.length; i++) {
+        groups[i] = "nrp" + i;
+      }
+    }
+
+    private static String compileTemplate(String template, List<String> replacements) {
+      StringBuilder regex = new StringBuilder();
+      String[] segments = template.split("/", -1);
+      for (int i = 0; i < segments.length; i++) {
+        String segment = segments[i];
+        if (segment.startsWith("<") && segment.endsWith(">") && segment.length() > 2) {
+          String body = segment.substring(1, segment.length() - 1);
+          int comma = body.indexOf(',');
+          String name = comma < 0 ? body : body.substring(0, comma);
+          String segmentRegex = comma < 0 ? "[^/?#]+" : body.substring(comma + 1);
+          regex.append("(?<nrp").append(replacements.size()).append('>')
+              .append(segmentRegex).append(')');
+          replacements.add("<" + name + ">");
+        } else {
+          regex.append(segment);
+        }
+        if (i + 1 < segments.length) {
+          regex.append('/');
+        }
+      }
+      return regex.append("(?=[/?#]|$)").toString();
+    }
+
+    @Override
+    boolean apply(Matcher matcher, CharSequence name, StringBuilder out) {
+      if (!matcher.find()) {
+        return false;
+      }
+      int position = 0;
+      for (int i = 0; i < groups.length; i++) {
+        out.append(name, position, matcher.start(groups[i])).append(replacements[i]);
+        position = matcher.end(groups[i]);
+      }
+      out.append(name, position, name.length());
+      return true;
+    }
+  }
+
+  /**
+   * Return a literal that every match of {@code regex} contains.
+   *
+   * Only a leading run of literal characters (optionally inside leading,
+   * non-optional capturing groups) is considered.  Returns {@code null} for
+   * patterns with alternations or without a leading literal.
+   */
+  static String requiredLiteral(String regex) {
+    if (regex.indexOf('|') >= 0) {
+      return null;
+    }
+
+    int i = 0;
+    if (regex.startsWith("^")) {
+      i++;
+    }
+    while (i < regex.length() && regex.charAt(i) == '(') {
+      if (i + 1 < regex.length() && regex.charAt(i + 1) == '?') {
+        return null;
+      }
+      int close = closingParenthesis(regex, i);
+      if (close < 0 || isOptional(regex, close + 1)) {
+        return null;
+      }
+      i++;
+    }
+
+    StringBuilder literal = new StringBuilder();
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      int next = i + 1;
+      if (c == '\\') {
+        if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+          break;
+        }
+        c = regex.charAt(next);
+        next++;
+      } else if (".[]{}()*+?^$".indexOf(c) >= 0) {
+        break;
+      }
+      if (isOptional(regex, next)) {
+        break;
+      }
+      literal.append(c);
+      i = next;
+    }
+    return literal.length() == 0 ? null : literal.toString();
+  }
+
+  private static boolean isOptional(String regex, int quantifier) {
+    if (quantifier >= regex.length()) {
+      return false;
+    }
+    char c = regex.charAt(quantifier);
+    return c == '?' || c == '*' || c == '{';
+  }
+
+  private static int closingParenthesis(String regex, int open) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = open; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')' && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,213 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * A persisted snapshot of the hottest URI to name mappings of a
+ * {@link NameCache} and the hit counts of the {@link NamingRule}s.
+ *
+ * Loading a snapshot at startup lets a restarted JVM, or a new node of a
+ * fleet sharing a prebuilt snapshot, start with a warm cache.  The file is
+ * written to a temporary file that is moved into place, so readers never see
+ * a partial snapshot.  A snapshot is only loaded if it was written for the
+ * same rules.
+ *
+ * Request URIs may carry personal data, so they are stored as hashes, see
+ * {@link NameCache#hash(String)}, and a name is only stored if the rules
+ * changed the URI.  On POSIX file systems the file is readable by its owner
+ * only.
+ *
+ * File format (big-endian):
+ * <pre>
+ * int    magic "NRNS"
+ * int    version
+ * long   rule fingerprint, see {@link NamingPipeline#fingerprint()}
+ * int    rule count, then per rule:  string id, long hits
+ * int    entry count, then per entry: long uri hash, string name,
+ *        int group rule, int obfuscation rule, long hits
+ * </pre>
+ * where a string is an int byte length followed by UTF-8 bytes, an empty
+ * name stands for the URI itself, and a rule is the index of the rule
+ * applied, or -1.
+ */
+public class NamingSnapshot {
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  private static final int MAGIC = 0x4E524E53;
+  private static final int VERSION = 3;
+
+  private final Path file;
+  private final int maxEntries;
+  private final NamingPipeline pipeline;
+  private final NameCache cache;
+
+  public NamingSnapshot(Path file, int maxEntries, NamingPipeline pipeline, NameCache cache) {
+    this.file = file;
+    this.maxEntries = maxEntries;
+    this.pipeline = pipeline;
+    this.cache = cache;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Load the snapshot into the cache and the rule statistics.
+   *
+   * @return the number of cache entries loaded.
+   */
+  public int load() {
+    if (!Files.isRegularFile(file)) {
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Snapshot - no snapshot at {0}", file);
+      return 0;
+    }
+
+    try {
+      // A heap copy rather than a mapping, which would keep the file open
+      // and make replacing it fail on Windows.
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+      if (buffer.getInt() != MAGIC) {
+        LOGGER.log(Level.WARNING, "HTTPServlet-transaction-namer - Snapshot - {0} is not a snapshot file, ignoring it", file);
+        return 0;
+      }
+      if (buffer.getInt() != VERSION) {
+        LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Snapshot - {0} was written by a different version, ignoring it", file);
+        return 0;
+      }
+      if (buffer.getLong() != pipeline.fingerprint()) {
+        LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Snapshot - {0} was written for different rules, ignoring it", file);
+        return 0;
+      }
+
+      Map<String, NamingRule> rulesById = new HashMap<String, NamingRule>();
+      for (NamingRule rule : pipeline.getRules()) {
+        rulesById.put(rule.toString(), rule);
+      }
+      Map<String, Long> ruleHits = new HashMap<String, Long>();
+      int ruleCount = readCount(buffer);
+      for (int i = 0; i < ruleCount; i++) {
+        ruleHits.put(readString(buffer), buffer.getLong());
+      }
+
+      int entryCount = readCount(buffer);
+      long[] uriHashes = new long[entryCount];
+      String[] names = new String[entryCount];
+      int[] groupRules = new int[entryCount];
+      int[] obfuscationRules = new int[entryCount];
+      long[] hits = new long[entryCount];
+      for (int i = 0; i < entryCount; i++) {
+        uriHashes[i] = buffer.getLong();
+        String name = readString(buffer);
+        names[i] = name.isEmpty() ? null : name;
+        groupRules[i] = buffer.getInt();
+        obfuscationRules[i] = buffer.getInt();
+        hits[i] = buffer.getLong();
+      }
+
+      // Only apply a snapshot that was read completely.
+      for (Map.Entry<String, Long> ruleHit : ruleHits.entrySet()) {
+        NamingRule rule = rulesById.get(ruleHit.getKey());
+        if (rule != null) {
+          rule.addHits(ruleHit.getValue());
+        }
+      }
+      if (cache != null) {
+        for (int i = 0; i < entryCount; i++) {
+          cache.putLoaded(uriHashes[i], names[i], groupRules[i], obfuscationRules[i], hits[i]);
+        }
+      }
+      LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Snapshot - loaded {0} names from {1}", entryCount, file);
+      return entryCount;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, e, "HTTPServlet-transaction-namer - Snapshot - could not load {0}: {1}", file, e.getMessage());
+      return 0;
+    }
+  }
+
+  /**
+   * Write the hottest cache entries and the rule statistics.
+   */
+  public void write() {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    List<NameCache.Entry> entries = cache.hottest(maxEntries);
+    List<NamingRule> rules = pipeline.getRules();
+
+    try {
+      Files.deleteIfExists(temp);
+      if (temp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(pipeline.fingerprint());
+        out.writeInt(rules.size());
+        for (NamingRule rule : rules) {
+          writeString(out, rule.toString());
+          out.writeLong(rule.getHits());
+        }
+        out.writeInt(entries.size());
+        for (NameCache.Entry entry : entries) {
+          out.writeLong(entry.getUriHash());
+          writeString(out, entry.isUnchanged() ? "" : entry.getName());
+          out.writeInt(entry.getGroupRule());
+          out.writeInt(entry.getObfuscationRule());
+          out.writeLong(entry.getHits());
+        }
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Snapshot - wrote {0} names to {1}", entries.size(), file);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, e, "HTTPServlet-transaction-namer - Snapshot - could not write {0}: {1}", file, e.getMessage());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static int readCount(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    // Every counted item takes at least 12 bytes.
+    if (count < 0 || count > buffer.remaining() / 12) {
+      throw new BufferUnderflowException();
+    }
+    return count;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,226 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A view of an {@link HttpServletRequest} that is shared by all
+ * {@link ServletInstrumentationV2}s of a request.
+ *
+ * Every part of the request is parsed on first use and remembered, so the
+ * cost of parsing does not grow with the number of instrumentations: the
+ * request URI, the normalized path and its segments, the cookies, the
+ * query parameters and the headers that were looked up.  Only the query
+ * parameters that are looked up are decoded.
+ *
+ * A view belongs to a single request and is not thread-safe.
+ */
+public class RequestView {
+
+  private static final int[] NO_SEGMENTS = new int[0];
+
+  private final HttpServletRequest request;
+  private final UriNormalizer normalizer;
+
+  private String requestURI;
+  private String normalizedPath;
+  private int[] segments;
+  private Map<String, String> cookies;
+  private String[] queryNames;
+  private String[] queryValues;
+  private String[] headers;
+  private int headerCount;
+
+  /**
+   * Create a view whose normalized path is the raw request URI.
+   *
+   * @param request the HTTP servlet request.
+   */
+  public RequestView(HttpServletRequest request) {
+    this(request, UriNormalizer.DISABLED);
+  }
+
+  /**
+   * @param request the HTTP servlet request.
+   * @param normalizer the normalizer of {@link #getNormalizedPath()}.
+   */
+  public RequestView(HttpServletRequest request, UriNormalizer normalizer) {
+    this.request = request;
+    this.normalizer = normalizer;
+  }
+
+  public HttpServletRequest getRequest() {
+    return request;
+  }
+
+  public UriNormalizer getNormalizer() {
+    return normalizer;
+  }
+
+  public String getRequestURI() {
+    if (requestURI == null) {
+      requestURI = request.getRequestURI();
+    }
+    return requestURI;
+  }
+
+  /**
+   * @return the request path as normalized by {@link #getNormalizer()}.
+   */
+  public String getNormalizedPath() {
+    if (normalizedPath == null) {
+      normalizedPath = normalizer.isEnabled() ? normalizer.normalize(request) : getRequestURI();
+    }
+    return normalizedPath;
+  }
+
+  /**
+   * @return the number of non-empty segments of the normalized path.
+   */
+  public int getSegmentCount() {
+    return segments().length / 2;
+  }
+
+  /**
+   * @param index the segment index.
+   * @return the segment of the normalized path at {@code index}.
+   */
+  public String getSegment(int index) {
+    int[] offsets = segments();
+    return getNormalizedPath().substring(offsets[index * 2], offsets[index * 2 + 1]);
+  }
+
+  /**
+   * @param index the segment index.
+   * @return the offset of the first character of the segment in the
+   * normalized path.
+   */
+  public int getSegmentStart(int index) {
+    return segments()[index * 2];
+  }
+
+  /**
+   * @param index the segment index.
+   * @return the offset after the last character of the segment in the
+   * normalized path.
+   */
+  public int getSegmentEnd(int index) {
+    return segments()[index * 2 + 1];
+  }
+
+  private int[] segments() {
+    if (segments != null) {
+      return segments;
+    }
+    String path = getNormalizedPath();
+    if (path == null) {
+      segments = NO_SEGMENTS;
+      return segments;
+    }
+
+    int count = 0;
+    for (int i = 0; i < path.length(); i++) {
+      if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/')) {
+        count++;
+      }
+    }
+    int[] offsets = new int[count * 2];
+    int segment = 0;
+    int start = -1;
+    for (int i = 0; i <= path.length(); i++) {
+      boolean separator = i == path.length() || path.charAt(i) == '/';
+      if (separator && start >= 0) {
+        offsets[segment++] = start;
+        offsets[segment++] = i;
+        start = -1;
+      } else if (!separator && start < 0) {
+        start = i;
+      }
+    }
+    segments = offsets;
+    return segments;
+  }
+
+  /**
+   * Return the value of a cookie.  Names are compared ignoring case; of
+   * several cookies with the same name the last one wins.
+   *
+   * @param name the cookie name.
+   * @return the cookie value, or {@code null}.
+   */
+  public String getCookie(String name) {
+    return getCookies().get(name);
+  }
+
+  /**
+   * @return the cookie values by case-insensitive name.
+   */
+  public Map<String, String> getCookies() {
+    if (cookies == null) {
+      Cookie[] requestCookies = request.getCookies();
+      if (requestCookies == null || requestCookies.length == 0) {
+        cookies = Collections.emptyMap();
+      } else {
+        Map<String, String> map = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (Cookie cookie : requestCookies) {
+          map.put(cookie.getName(), cookie.getValue());
+        }
+        cookies = Collections.unmodifiableMap(map);
+      }
+    }
+    return cookies;
+  }
+
+  /**
+   * Return the first value of each of the query string parameters
+   * {@code names}, scanning the query string once.  Unlike
+   * {@link HttpServletRequest#getParameter(String)} this never reads the
+   * request body.  The values for the last {@code names} array are
+   * remembered, so callers should pass the same precompiled array on every
+   * request.
+   *
+   * @param names the parameter names.
+   * @return the decoded values, {@code null} for absent names.  Do not
+   * modify the array.
+   */
+  public String[] getQueryParameters(String[] names) {
+    if (names != queryNames) {
+      String[] values = new String[names.length];
+      Utilities.findQueryParameters(request.getQueryString(), names, values);
+      queryNames = names;
+      queryValues = values;
+    }
+    return queryValues;
+  }
+
+  /**
+   * Return a request header, looking it up once per request.
+   *
+   * @param name the header name.
+   * @return the header value, or {@code null}.
+   */
+  public String getHeader(String name) {
+    // Few headers are looked up per request: a flat array of name/value
+    // pairs is cheaper than a map.
+    if (headers == null) {
+      headers = new String[4];
+    }
+    for (int i = 0; i < headerCount; i += 2) {
+      if (headers[i].equalsIgnoreCase(name)) {
+        return headers[i + 1];
+      }
+    }
+    String value = request.getHeader(name);
+    if (headerCount == headers.length) {
+      headers = Arrays.copyOf(headers, headers.length * 2);
+    }
+    headers[headerCount++] = name;
+    headers[headerCount++] = value;
+    return value;
+  }
+}
@@ -0,0 +1,162 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.newrelic.api.agent.Agent;
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+import com.newrelic.api.agent.Transaction;
+
+/**
+ * "Namer" instrumentation that names transactions from framework route
+ * templates.
+ *
+ * Frameworks work out the route template of a request while dispatching it
+ * and store it as a request attribute, e.g. Spring MVC stores
+ * {@code /owners/{ownerId}} in
+ * {@code org.springframework.web.servlet.HandlerMapping.bestMatchingPattern}.
+ * This instrumentation defers naming to the after-service phase and names
+ * the transaction from the first non-empty attribute of the configured
+ * {@code route_template_namer.attributes} list.  For matched routes naming
+ * costs a single attribute lookup.  Requests without a route template fall
+ * back to the {@link TransactionNamer} rules.
+ *
+ * Register this class instead of {@link TransactionNamer}, not in addition
+ * to it.
+ */
+public class RouteTemplateNamer extends TransactionNamer {
+
+  /**
+   * The request attribute used when none are configured.
+   */
+  public static final String SPRING_BEST_MATCHING_PATTERN
+      = "org.springframework.web.servlet.HandlerMapping.bestMatchingPattern";
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  /**
+   * The request attributes to check, in order.
+   */
+  private String[] routeAttributes = { SPRING_BEST_MATCHING_PATTERN };
+
+  @Override
+  public void init(Config nrConfig) {
+    super.init(nrConfig);
+
+    List<String> attributes = Utilities.getStringList(nrConfig.getValue(
+        "httpservlet_transaction_namer.route_template_namer.attributes"
+    ));
+    if (attributes != null) {
+      routeAttributes = attributes.toArray(new String[attributes.size()]);
+    }
+    LOGGER.log(
+        Level.INFO,
+        "HTTPServlet-transaction-namer - Route Template Namer - Enabled for attributes: {0}",
+        String.join(", ", routeAttributes)
+    );
+  }
+
+  /**
+   * Naming is deferred to {@link #afterService}, when the framework has
+   * resolved the route template; the request is only counted for load
+   * shedding.
+   */
+  @Override
+  public void instrumentRequest(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    countRequest();
+  }
+
+  @Override
+  public void instrumentRequest(
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    countRequest();
+  }
+
+  @Override
+  public void afterService(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    name(request, null, response, agent, transaction);
+  }
+
+  @Override
+  public void afterService(
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    name(view.getRequest(), view, response, agent, transaction);
+  }
+
+  private void name(
+      HttpServletRequest request,
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    String template = getRouteTemplate(request);
+    if (template == null) {
+      nameRequest(request, view, transaction);
+      return;
+    }
+
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(
+          Level.FINER,
+          "HTTPServlet-transaction-namer - Route Template Namer - matched route template: {0}",
+          template
+      );
+    }
+    if (isObfuscationEnabled()) {
+      if (view == null) {
+        addObfuscatedAttributes(request, template);
+      } else {
+        addObfuscatedAttributes(view, template);
+      }
+    }
+    String appended = "";
+    if (isParameterAppendingEnabled()) {
+      appended = view == null ? appendParameters(request) : appendParameters(view);
+    }
+    setTransactionName(transaction, template, appended);
+  }
+
+  /**
+   * Return the first non-empty route template attribute of the
+   * {@code request}, or {@code null} if there is none.
+   */
+  public String getRouteTemplate(HttpServletRequest request) {
+    for (String attribute : routeAttributes) {
+      // Not necessarily a String: Spring 5.3+ may store a PathPattern.
+      Object value = request.getAttribute(attribute);
+      if (value != null) {
+        String template = value.toString();
+        if (!template.isEmpty()) {
+          return template;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -48,4 +48,29 @@ public interface ServletInstrumentation {
       Transaction transaction
   ) throws ServletException, IOException;
 
+  /**
+   * Instrument the specified servlet {@code request} after it was serviced.
+   *
+   * This method is called once for every servlet request, after the original
+   * {@link javax.servlet.http.HttpServlet#service} method returned or threw.
+   * At this point frameworks have finished dispatching and may have stored
+   * information such as the matched route template in request attributes.
+   * The default implementation does nothing.
+   *
+   * @param request the HTTP servlet request.
+   * @param response the HTTP servlet response.
+   * @param agent the New Relic Agent API.
+   * @param transaction the current New Relic {@link Transaction}.
+   *
+   * @throws ServletException if a servlet exception occurrs.
+   * @throws IOException if an I/O error occurs.
+   */
+  default void afterService(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+  }
+
 }
@@ -0,0 +1,185 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.List;
+
+/**
+ * JMX view of the loaded {@link ServletInstrumentation}s and the naming
+ * rules of each {@link TransactionNamer}, registered by the
+ * {@link ServletInstrumentationManager}.
+ *
+ * @see ServletInstrumentationMonitor
+ */
+public interface ServletInstrumentationMXBean {
+
+  /**
+   * The object name the bean is registered under.
+   */
+  String OBJECT_NAME = "com.newrelic.fit.javax.servlet.http:type=ServletInstrumentationManager";
+
+  /**
+   * Circuit breaker statistics of an instrumentation.
+   */
+  final class Instrumentation {
+
+    private final CircuitBreaker breaker;
+
+    Instrumentation(CircuitBreaker breaker) {
+      this.breaker = breaker;
+    }
+
+    public String getName() {
+      return breaker.getName();
+    }
+
+    public String getState() {
+      return breaker.getState().name();
+    }
+
+    public long getCalls() {
+      return breaker.getCalls();
+    }
+
+    public long getFailures() {
+      return breaker.getFailures();
+    }
+
+    public long getSkipped() {
+      return breaker.getSkipped();
+    }
+
+    public long getQuarantines() {
+      return breaker.getQuarantines();
+    }
+
+    public long getMeanNanos() {
+      long calls = breaker.getCalls();
+      return calls == 0 ? 0 : breaker.getTotalNanos() / calls;
+    }
+
+    public long getMaxNanos() {
+      return breaker.getMaxNanos();
+    }
+  }
+
+  /**
+   * Statistics of a naming rule.
+   */
+  final class Rule {
+
+    private final String instrumentation;
+    private final int index;
+    private final NamingRule rule;
+
+    Rule(String instrumentation, int index, NamingRule rule) {
+      this.instrumentation = instrumentation;
+      this.index = index;
+      this.rule = rule;
+    }
+
+    /**
+     * @return the class name of the {@link TransactionNamer}.
+     */
+    public String getInstrumentation() {
+      return instrumentation;
+    }
+
+    /**
+     * @return the position of the rule in its pipeline.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public String getKind() {
+      return rule.getKind().getKey();
+    }
+
+    public String getSource() {
+      return rule.getSource();
+    }
+
+    public boolean isEnabled() {
+      return rule.isEnabled();
+    }
+
+    public long getHits() {
+      return rule.getHits();
+    }
+
+    public long getMisses() {
+      return rule.getMisses();
+    }
+
+    public long getMeanNanos() {
+      return rule.getMeanNanos();
+    }
+
+    public long getMaxNanos() {
+      return rule.getMaxNanos();
+    }
+  }
+
+  /**
+   * Statistics of the name cache of a {@link TransactionNamer}.
+   */
+  final class Cache {
+
+    private final String instrumentation;
+    private final NameCache cache;
+
+    Cache(String instrumentation, NameCache cache) {
+      this.instrumentation = instrumentation;
+      this.cache = cache;
+    }
+
+    public String getInstrumentation() {
+      return instrumentation;
+    }
+
+    public int getSize() {
+      return cache.size();
+    }
+
+    public int getMaxEntries() {
+      return cache.getMaxEntries();
+    }
+
+    public long getHits() {
+      return cache.getHits();
+    }
+
+    public long getMisses() {
+      return cache.getMisses();
+    }
+  }
+
+  /**
+   * @return the instrumentations, in the order they run.
+   */
+  List<Instrumentation> getInstrumentations();
+
+  /**
+   * @return the naming rules of all {@link TransactionNamer}s.
+   */
+  List<Rule> getRules();
+
+  /**
+   * @return the name caches of all {@link TransactionNamer}s.
+   */
+  List<Cache> getCaches();
+
+  /**
+   * Reset all statistics.  This also closes open circuit breakers.
+   */
+  void resetStatistics();
+
+  /**
+   * Turn a naming rule on or off, and clear the cached names of its
+   * {@link TransactionNamer}.
+   *
+   * @param instrumentation the class name of the {@link TransactionNamer}.
+   * @param index the position of the rule in its pipeline.
+   * @param enabled whether the rule is applied.
+   */
+  void setRuleEnabled(String instrumentation, int index, boolean enabled);
+}
@@ -1,10 +1,17 @@
 package com.newrelic.fit.javax.servlet.http;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,11 +47,57 @@ public class ServletInstrumentationManager {
    */
   private List<ServletInstrumentation> instrumentations;
 
+  /**
+   * The circuit breaker of each instrumentation, by index.
+   */
+  private CircuitBreaker[] breakers;
+
+  /**
+   * The circuit breaker of the after-service phase of each instrumentation,
+   * by index, or {@code null} if it keeps the default no-op
+   * {@link ServletInstrumentation#afterService}.
+   */
+  private CircuitBreaker[] afterServiceBreakers;
+
+  /**
+   * The normalizer of the shared {@link RequestView}s.
+   */
+  private UriNormalizer uriNormalizer = UriNormalizer.DISABLED;
+
+  /**
+   * Whether {@link RequestView}s are created: only if more than one
+   * {@link ServletInstrumentationV2} could share them.
+   */
+  private boolean sharingViews;
+
   /**
    * The singleton accessor lock mutex.
    */
   private static final Object LOCK = new Object();
 
+  public ServletInstrumentationManager() {
+  }
+
+  /**
+   * Create a manager that runs the given, already initialized
+   * {@code instrumentations} instead of the configured ones.
+   *
+   * @param instrumentations the instrumentations to run.
+   */
+  ServletInstrumentationManager(List<ServletInstrumentation> instrumentations) {
+    this(instrumentations, CircuitBreaker.Settings.defaults());
+  }
+
+  ServletInstrumentationManager(
+      List<ServletInstrumentation> instrumentations,
+      CircuitBreaker.Settings settings
+  ) {
+    this.instrumentations = instrumentations;
+    this.breakers = createBreakers(instrumentations, settings, false);
+    this.afterServiceBreakers = createBreakers(instrumentations, settings, true);
+    this.sharingViews = countViewInstrumentations(instrumentations) > 1;
+  }
+
   /**
    * Get the singleton instance to use.
    *
@@ -59,6 +112,7 @@ public class ServletInstrumentationManager {
       if (MANAGER == null) {
         MANAGER = new ServletInstrumentationManager();
         MANAGER.loadInstrumentations();
+        MANAGER.registerMBean();
       }
     }
 
@@ -72,6 +126,114 @@ public class ServletInstrumentationManager {
    */
   private void loadInstrumentations() {
     this.instrumentations = this.getInstrumentations();
+    this.uriNormalizer = UriNormalizer.fromConfig(NewRelic.getAgent().getConfig());
+    CircuitBreaker.Settings settings = CircuitBreaker.Settings.fromConfig(NewRelic.getAgent().getConfig());
+    this.breakers = createBreakers(this.instrumentations, settings, false);
+    this.afterServiceBreakers = createBreakers(this.instrumentations, settings, true);
+    this.sharingViews = countViewInstrumentations(this.instrumentations) > 1;
+  }
+
+  private static int countViewInstrumentations(List<ServletInstrumentation> instrumentations) {
+    int count = 0;
+    for (ServletInstrumentation instrumentation : instrumentations) {
+      if (instrumentation instanceof ServletInstrumentationV2) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Register a {@link ServletInstrumentationMXBean} for the loaded
+   * instrumentations, unless {@code jmx.enabled} is {@code false}.
+   */
+  private void registerMBean() {
+    Object enabled = NewRelic.getAgent().getConfig().getValue("httpservlet_transaction_namer.jmx.enabled");
+    if (enabled != null && !Utilities.checkBoolean(enabled)) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new ServletInstrumentationMonitor(this.instrumentations, getCircuitBreakers()),
+          new ObjectName(ServletInstrumentationMXBean.OBJECT_NAME)
+      );
+      LOGGER.log(Level.INFO, "registerMBean() >> Registered {0}", ServletInstrumentationMXBean.OBJECT_NAME);
+    } catch (InstanceAlreadyExistsException e) {
+      LOGGER.log(
+          Level.INFO,
+          "registerMBean() >> {0} is already registered, probably by another web application",
+          ServletInstrumentationMXBean.OBJECT_NAME
+      );
+    } catch (JMException | RuntimeException e) {
+      LOGGER.log(
+          Level.WARNING,
+          e,
+          "registerMBean() >> Could not register {0}: {1}",
+          ServletInstrumentationMXBean.OBJECT_NAME,
+          e.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Create a circuit breaker per instrumentation for one phase.  Each phase
+   * has its own breaker so that the calls of one phase do not dilute the
+   * failure rate and mean latency of the other.  Instrumentations that keep
+   * the default no-op after-service phase get no after-service breaker and
+   * that phase is skipped.
+   */
+  private static CircuitBreaker[] createBreakers(
+      List<ServletInstrumentation> instrumentations,
+      CircuitBreaker.Settings settings,
+      boolean afterService
+  ) {
+    CircuitBreaker[] breakers = new CircuitBreaker[instrumentations.size()];
+    long now = System.nanoTime();
+    for (int i = 0; i < breakers.length; i++) {
+      ServletInstrumentation instrumentation = instrumentations.get(i);
+      if (afterService && !overridesAfterService(instrumentation)) {
+        continue;
+      }
+      breakers[i] = new CircuitBreaker(
+          instrumentation.getClass().getName() + (afterService ? "#afterService" : ""),
+          settings,
+          now
+      );
+    }
+    return breakers;
+  }
+
+  private static boolean overridesAfterService(ServletInstrumentation instrumentation) {
+    Class<?> type = instrumentation.getClass();
+    try {
+      if (type.getMethod("afterService", HttpServletRequest.class, HttpServletResponse.class,
+          Agent.class, Transaction.class).getDeclaringClass() != ServletInstrumentation.class) {
+        return true;
+      }
+      return instrumentation instanceof ServletInstrumentationV2
+          && type.getMethod("afterService", RequestView.class, HttpServletResponse.class,
+              Agent.class, Transaction.class).getDeclaringClass() != ServletInstrumentationV2.class;
+    } catch (NoSuchMethodException | SecurityException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Return the circuit breakers of the loaded instrumentations, in the order
+   * the instrumentations run, followed by the after-service breakers of the
+   * instrumentations that have an after-service phase.
+   *
+   * @return the circuit breakers.
+   */
+  public List<CircuitBreaker> getCircuitBreakers() {
+    List<CircuitBreaker> list = new ArrayList<CircuitBreaker>(Arrays.asList(this.breakers));
+    for (CircuitBreaker breaker : this.afterServiceBreakers) {
+      if (breaker != null) {
+        list.add(breaker);
+      }
+    }
+    return Collections.unmodifiableList(list);
   }
 
   /**
@@ -163,8 +325,10 @@ public class ServletInstrumentationManager {
    * Apply all instrumentations to the {@code request}.
    *
    * Apply all the discovered instrumentations
-   * to the {@link HttpServletRequest}.  If any instrumentation throws an
-   * exception, it will be re-thrown from this method.
+   * to the {@link HttpServletRequest}.  If an instrumentation throws, the
+   * failure is recorded by its {@link CircuitBreaker} and never reaches the
+   * application; an instrumentation that keeps failing, or is too slow, is
+   * quarantined for a while.
    *
    * @param request
    * @param response
@@ -175,6 +339,39 @@ public class ServletInstrumentationManager {
       HttpServletRequest request,
       HttpServletResponse response
   ) throws ServletException, IOException {
+    applyInstrumentations(request, createRequestView(request), response);
+  }
+
+  /**
+   * Create the view of the {@code request} to share between all
+   * instrumentations and both phases.
+   *
+   * A view only saves work when several {@link ServletInstrumentationV2}s
+   * read the same request, so none is created otherwise.
+   *
+   * @param request the HTTP servlet request.
+   * @return a new request view, or {@code null} if fewer than two
+   * {@link ServletInstrumentationV2}s are loaded.
+   */
+  public RequestView createRequestView(HttpServletRequest request) {
+    return this.sharingViews ? new RequestView(request, this.uriNormalizer) : null;
+  }
+
+  /**
+   * Apply all instrumentations to the {@code request}, passing
+   * {@link ServletInstrumentationV2}s the shared {@code view}.  Failures are
+   * handled as in
+   * {@link #applyInstrumentations(HttpServletRequest, HttpServletResponse)}.
+   *
+   * @param request
+   * @param view the shared request view, or {@code null}.
+   * @param response
+   */
+  public void applyInstrumentations(
+      HttpServletRequest request,
+      RequestView view,
+      HttpServletResponse response
+  ) {
     final boolean isLoggingFiner = LOGGER.isLoggable(Level.FINER);
     final Agent agent = NewRelic.getAgent();
     final Transaction transaction = agent.getTransaction();
@@ -184,30 +381,117 @@ public class ServletInstrumentationManager {
     }
 
     // Iterate through each instrumentation instance and invoke it's
-    // instrumentRequest() method.
-    for (ServletInstrumentation instrumentation : this.instrumentations) {
+    // instrumentRequest() method, unless its circuit breaker is open.
+    for (int i = 0; i < this.breakers.length; i++) {
       if (isLoggingFiner) {
         LOGGER.log(Level.FINER, "applyInstrumentations() >> Running instrumentation {0}",
-            instrumentation.getClass().getName());
-      }
-      try {
-        instrumentation.instrumentRequest(request, response, agent, transaction);
-      } catch (
-          ServletException |
-          IOException e
-      ) {
-        LOGGER.log(
-            Level.WARNING,
-            e,
-            "applyInstrumentations() >> Instrumentation {0} threw an exception: {1}",
-            instrumentation.getClass().getName(),
-            e.getMessage()
-        );
+            this.breakers[i].getName());
       }
+      invoke(i, false, request, view, response, agent, transaction);
     }
 
     if (isLoggingFiner) {
       LOGGER.log(Level.FINER, "applyInstrumentations() >> Exiting");
     }
   }
+
+  /**
+   * Apply the after-service phase of all instrumentations to the
+   * {@code request}.
+   *
+   * Invoke {@link ServletInstrumentation#afterService} of each discovered
+   * instrumentation once the original servlet has serviced the
+   * {@link HttpServletRequest}.  Exceptions are handled the same way as in
+   * {@link #applyInstrumentations(HttpServletRequest, HttpServletResponse)}.
+   *
+   * @param request
+   * @param response
+   */
+  public void applyPostServiceInstrumentations(
+      HttpServletRequest request,
+      HttpServletResponse response
+  ) {
+    applyPostServiceInstrumentations(request, createRequestView(request), response);
+  }
+
+  /**
+   * Apply the after-service phase of all instrumentations to the
+   * {@code request}, passing {@link ServletInstrumentationV2}s the shared
+   * {@code view}, normally the one passed to
+   * {@link #applyInstrumentations(HttpServletRequest, RequestView, HttpServletResponse)}.
+   *
+   * @param request
+   * @param view the shared request view, or {@code null}.
+   * @param response
+   */
+  public void applyPostServiceInstrumentations(
+      HttpServletRequest request,
+      RequestView view,
+      HttpServletResponse response
+  ) {
+    final boolean isLoggingFiner = LOGGER.isLoggable(Level.FINER);
+    final Agent agent = NewRelic.getAgent();
+    final Transaction transaction = agent.getTransaction();
+
+    if (isLoggingFiner) {
+      LOGGER.log(Level.FINER, "applyPostServiceInstrumentations() >> Entering");
+    }
+
+    for (int i = 0; i < this.afterServiceBreakers.length; i++) {
+      if (this.afterServiceBreakers[i] != null) {
+        invoke(i, true, request, view, response, agent, transaction);
+      }
+    }
+
+    if (isLoggingFiner) {
+      LOGGER.log(Level.FINER, "applyPostServiceInstrumentations() >> Exiting");
+    }
+  }
+
+  /**
+   * Run one phase of the instrumentation at {@code index} through the
+   * circuit breaker of that phase.
+   *
+   * Everything the instrumentation throws is caught, except virtual machine
+   * errors other than {@link StackOverflowError}.
+   */
+  private void invoke(
+      int index,
+      boolean afterService,
+      HttpServletRequest request,
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) {
+    CircuitBreaker breaker = afterService ? this.afterServiceBreakers[index] : this.breakers[index];
+    long start = System.nanoTime();
+    CircuitBreaker.Permit permit = breaker.acquire(start);
+    if (permit == CircuitBreaker.Permit.DENIED) {
+      return;
+    }
+
+    ServletInstrumentation instrumentation = this.instrumentations.get(index);
+    try {
+      if (view != null && instrumentation instanceof ServletInstrumentationV2) {
+        ServletInstrumentationV2 v2 = (ServletInstrumentationV2) instrumentation;
+        if (afterService) {
+          v2.afterService(view, response, agent, transaction);
+        } else {
+          v2.instrumentRequest(view, response, agent, transaction);
+        }
+      } else if (afterService) {
+        instrumentation.afterService(request, response, agent, transaction);
+      } else {
+        instrumentation.instrumentRequest(request, response, agent, transaction);
+      }
+    } catch (Throwable t) {
+      if (t instanceof VirtualMachineError && !(t instanceof StackOverflowError)) {
+        throw (VirtualMachineError) t;
+      }
+      breaker.onFailure(permit, t, start, System.nanoTime());
+      return;
+    }
+    breaker.onSuccess(permit, start, System.nanoTime());
+  }
 }
@@ -0,0 +1,86 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link ServletInstrumentationMXBean} of a
+ * {@link ServletInstrumentationManager}.
+ *
+ * All values are read from the live counters when requested.
+ */
+public class ServletInstrumentationMonitor implements ServletInstrumentationMXBean {
+
+  private final List<ServletInstrumentation> instrumentations;
+  private final List<CircuitBreaker> breakers;
+
+  public ServletInstrumentationMonitor(List<ServletInstrumentation> instrumentations, List<CircuitBreaker> breakers) {
+    this.instrumentations = instrumentations;
+    this.breakers = breakers;
+  }
+
+  @Override
+  public List<Instrumentation> getInstrumentations() {
+    List<Instrumentation> list = new ArrayList<Instrumentation>(breakers.size());
+    for (CircuitBreaker breaker : breakers) {
+      list.add(new Instrumentation(breaker));
+    }
+    return list;
+  }
+
+  @Override
+  public List<Rule> getRules() {
+    List<Rule> list = new ArrayList<Rule>();
+    for (ServletInstrumentation instrumentation : instrumentations) {
+      if (instrumentation instanceof TransactionNamer) {
+        String name = instrumentation.getClass().getName();
+        List<NamingRule> rules = ((TransactionNamer) instrumentation).getPipeline().getRules();
+        for (int i = 0; i < rules.size(); i++) {
+          list.add(new Rule(name, i, rules.get(i)));
+        }
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public List<Cache> getCaches() {
+    List<Cache> list = new ArrayList<Cache>();
+    for (ServletInstrumentation instrumentation : instrumentations) {
+      if (instrumentation instanceof TransactionNamer) {
+        NameCache cache = ((TransactionNamer) instrumentation).getPipeline().getCache();
+        if (cache != null) {
+          list.add(new Cache(instrumentation.getClass().getName(), cache));
+        }
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void resetStatistics() {
+    for (CircuitBreaker breaker : breakers) {
+      breaker.reset();
+    }
+    for (ServletInstrumentation instrumentation : instrumentations) {
+      if (instrumentation instanceof TransactionNamer) {
+        ((TransactionNamer) instrumentation).getPipeline().resetStatistics();
+      }
+    }
+  }
+
+  @Override
+  public void setRuleEnabled(String instrumentation, int index, boolean enabled) {
+    for (ServletInstrumentation candidate : instrumentations) {
+      if (candidate instanceof TransactionNamer && candidate.getClass().getName().equals(instrumentation)) {
+        NamingPipeline pipeline = ((TransactionNamer) candidate).getPipeline();
+        if (index < 0 || index >= pipeline.getRules().size()) {
+          throw new IllegalArgumentException("No rule " + index + " in " + instrumentation);
+        }
+        pipeline.setRuleEnabled(index, enabled);
+        return;
+      }
+    }
+    throw new IllegalArgumentException("No TransactionNamer " + instrumentation);
+  }
+}
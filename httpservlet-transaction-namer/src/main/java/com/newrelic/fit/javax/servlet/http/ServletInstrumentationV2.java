@@ -0,0 +1,79 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.newrelic.api.agent.Agent;
+import com.newrelic.api.agent.Transaction;
+
+/**
+ * Contract for servlet request instrumentations that read the request
+ * through a shared {@link RequestView}.
+ *
+ * When more than one {@link ServletInstrumentationV2} is registered, the
+ * {@link ServletInstrumentationManager} creates one view per request and
+ * passes it to each of them, in both phases, so the URI, cookies, query
+ * string and headers are parsed at most once however many instrumentations
+ * are registered.  Otherwise no view is created and the
+ * {@link HttpServletRequest} methods are called instead; the default
+ * {@code instrumentRequest} creates a view of its own.  Instrumentations
+ * are registered the same way as {@link ServletInstrumentation}s.
+ */
+public interface ServletInstrumentationV2 extends ServletInstrumentation {
+
+  /**
+   * Instrument the request of the specified {@code view}.
+   *
+   * @param view the shared view of the HTTP servlet request.
+   * @param response the HTTP servlet response.
+   * @param agent the New Relic Agent API.
+   * @param transaction the current New Relic {@link Transaction}.
+   *
+   * @throws ServletException if a servlet exception occurrs.
+   * @throws IOException if an I/O error occurs.
+   */
+  void instrumentRequest(
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException;
+
+  /**
+   * Instrument the request of the specified {@code view} after it was
+   * serviced.  The default implementation calls
+   * {@link #afterService(HttpServletRequest, HttpServletResponse, Agent, Transaction)}.
+   *
+   * @param view the shared view of the HTTP servlet request.
+   * @param response the HTTP servlet response.
+   * @param agent the New Relic Agent API.
+   * @param transaction the current New Relic {@link Transaction}.
+   *
+   * @throws ServletException if a servlet exception occurrs.
+   * @throws IOException if an I/O error occurs.
+   */
+  default void afterService(
+      RequestView view,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    afterService(view.getRequest(), response, agent, transaction);
+  }
+
+  /**
+   * Instrument the {@code request} through a view of its own.
+   */
+  @Override
+  default void instrumentRequest(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      Agent agent,
+      Transaction transaction
+  ) throws ServletException, IOException {
+    instrumentRequest(new RequestView(request), response, agent, transaction);
+  }
+}
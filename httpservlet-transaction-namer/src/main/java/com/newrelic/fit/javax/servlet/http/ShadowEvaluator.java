@@ -0,0 +1,260 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.newrelic.api.agent.Logger;
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Runs a candidate {@link NamingPipeline} next to the live one without
+ * affecting transaction names.
+ *
+ * Request threads only offer a sample of (URI, live name) pairs to a
+ * bounded queue; a full queue drops the sample.  {@link #drain()} runs on
+ * the background thread: it names each sampled URI with the live and the
+ * candidate rules, times both, and keeps up to {@code maxDisagreements}
+ * URIs whose names differ.
+ *
+ * Sampled URIs are not obfuscated and the candidate rules may not obfuscate
+ * them either, so they are only logged at FINER.  At INFO only the live,
+ * already reported name of a disagreement is logged.
+ */
+public class ShadowEvaluator {
+
+  private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+
+  private static final String METRIC_PREFIX = "Custom/HTTPServlet-transaction-namer/Shadow/";
+
+  /**
+   * A URI the live and candidate rules name differently.
+   */
+  public static final class Disagreement {
+
+    private final String uri;
+    private final String liveName;
+    private final String candidateName;
+    private long count;
+
+    Disagreement(String uri, String liveName, String candidateName) {
+      this.uri = uri;
+      this.liveName = liveName;
+      this.candidateName = candidateName;
+    }
+
+    public String getUri() {
+      return uri;
+    }
+
+    public String getLiveName() {
+      return liveName;
+    }
+
+    public String getCandidateName() {
+      return candidateName;
+    }
+
+    /**
+     * @return how often the URI was sampled with these names.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Describes the disagreement by its live name only: the URI and the
+     * candidate name may not be obfuscated.
+     */
+    @Override
+    public String toString() {
+      return "live name " + liveName + " (" + count + " samples)";
+    }
+  }
+
+  private static final class Sample {
+
+    private final String uri;
+    private final String liveName;
+
+    Sample(String uri, String liveName) {
+      this.uri = uri;
+      this.liveName = liveName;
+    }
+  }
+
+  private final NamingPipeline live;
+  private final NamingPipeline candidate;
+  private final double sampleRate;
+  private final int maxDisagreements;
+  private final ArrayBlockingQueue<Sample> queue;
+
+  // Only accessed by the draining thread.
+  private final List<Sample> batch = new ArrayList<Sample>();
+
+  // Guarded by itself.
+  private final Map<String, Disagreement> disagreements = new LinkedHashMap<String, Disagreement>();
+
+  private final LongAdder samples = new LongAdder();
+  private final LongAdder agreed = new LongAdder();
+  private final LongAdder disagreed = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder liveNanos = new LongAdder();
+  private final LongAdder candidateNanos = new LongAdder();
+
+  public ShadowEvaluator(NamingPipeline live, NamingPipeline candidate, double sampleRate, int queueSize, int maxDisagreements) {
+    this.live = live;
+    this.candidate = candidate;
+    this.sampleRate = sampleRate;
+    this.maxDisagreements = maxDisagreements;
+    this.queue = new ArrayBlockingQueue<Sample>(Math.max(1, queueSize));
+  }
+
+  public NamingPipeline getCandidate() {
+    return candidate;
+  }
+
+  /**
+   * Offer a named request for shadow evaluation, if it is sampled.
+   *
+   * @param uri the (normalized) URI.
+   * @param liveName the name given by the live rules.
+   */
+  public void offer(String uri, String liveName) {
+    if (uri == null || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return;
+    }
+    if (!queue.offer(new Sample(uri, liveName))) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Evaluate the queued samples.  Only called from a single thread.
+   */
+  public void drain() {
+    queue.drainTo(batch);
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    int batchDisagreements = 0;
+    long batchLiveNanos = 0;
+    long batchCandidateNanos = 0;
+    for (Sample sample : batch) {
+      long start = System.nanoTime();
+      live.evaluateName(sample.uri);
+      long middle = System.nanoTime();
+      String candidateName = candidate.name(sample.uri);
+      long end = System.nanoTime();
+      batchLiveNanos += middle - start;
+      batchCandidateNanos += end - middle;
+
+      if (candidateName.equals(sample.liveName)) {
+        agreed.increment();
+      } else {
+        disagreed.increment();
+        batchDisagreements++;
+        recordDisagreement(sample.uri, sample.liveName, candidateName);
+      }
+    }
+
+    int batchSize = batch.size();
+    batch.clear();
+    samples.add(batchSize);
+    liveNanos.add(batchLiveNanos);
+    candidateNanos.add(batchCandidateNanos);
+
+    NewRelic.incrementCounter(METRIC_PREFIX + "Samples", batchSize);
+    NewRelic.incrementCounter(METRIC_PREFIX + "Disagreements", batchDisagreements);
+    NewRelic.recordMetric(METRIC_PREFIX + "CostDifferenceMicros", (batchCandidateNanos - batchLiveNanos) / 1000f / batchSize);
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Shadow - evaluated {0} samples, {1} disagreements", batchSize, batchDisagreements);
+    }
+  }
+
+  private void recordDisagreement(String uri, String liveName, String candidateName) {
+    synchronized (disagreements) {
+      Disagreement disagreement = disagreements.get(uri);
+      if (disagreement == null
+          || !disagreement.liveName.equals(liveName)
+          || !disagreement.candidateName.equals(candidateName)) {
+        if (disagreement == null && disagreements.size() >= maxDisagreements) {
+          return;
+        }
+        disagreement = new Disagreement(uri, liveName, candidateName);
+        disagreements.put(uri, disagreement);
+        LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Shadow - candidate rules name requests of {0} differently ({1} disagreements recorded)", liveName, disagreements.size());
+        if (LOGGER.isLoggable(Level.FINER)) {
+          LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Shadow - names differ for {0}: live {1}, candidate {2}", uri, liveName, candidateName);
+        }
+      }
+      disagreement.count++;
+    }
+  }
+
+  /**
+   * @return the recorded disagreements, in the order they were found.
+   */
+  public List<Disagreement> getDisagreements() {
+    synchronized (disagreements) {
+      return new ArrayList<Disagreement>(disagreements.values());
+    }
+  }
+
+  public long getSamples() {
+    return samples.sum();
+  }
+
+  public long getAgreements() {
+    return agreed.sum();
+  }
+
+  public long getDisagreementCount() {
+    return disagreed.sum();
+  }
+
+  /**
+   * @return the number of samples dropped because the queue was full.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the mean time the live rules took per sample, in nanoseconds.
+   */
+  public long getLiveMeanNanos() {
+    long count = samples.sum();
+    return count == 0 ? 0 : liveNanos.sum() / count;
+  }
+
+  /**
+   * @return the mean time the candidate rules took per sample, in
+   * nanoseconds.
+   */
+  public long getCandidateMeanNanos() {
+    long count = samples.sum();
+    return count == 0 ? 0 : candidateNanos.sum() / count;
+  }
+
+  /**
+   * Forget the recorded disagreements and statistics.
+   */
+  public void reset() {
+    synchronized (disagreements) {
+      disagreements.clear();
+    }
+    samples.reset();
+    agreed.reset();
+    disagreed.reset();
+    dropped.reset();
+    liveNanos.reset();
+    candidateNanos.reset();
+  }
+}
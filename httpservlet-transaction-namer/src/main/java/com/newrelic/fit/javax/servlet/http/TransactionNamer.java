@@ -1,16 +1,12 @@
 package com.newrelic.fit.javax.servlet.http;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -28,13 +24,22 @@ import com.newrelic.api.agent.TransactionNamePriority;
  * * Grouping transaction naes by URI
  * * Obfuscating portions of URIs in transaction names
  *
+ * The rules are compiled into a single {@link NamingPipeline} at
+ * {@link #init(Config)}.  When a shared {@link RequestView} is passed in,
+ * the request is read through it and its normalized path is used if the
+ * manager's URI normalizer is configured like this namer's.
+ *
  * @author Seth Schwartzman (seth@newrelic.com)
  * @author Prakash Reddy (preddy@newrelic.com)
  * @author Scott Dewitt (sdewitt@newrelic.com)
  * @author Craig Shanks (cshanks@newrelic.com)
  */
-public class TransactionNamer implements ServletInstrumentation {
+public class TransactionNamer implements ServletInstrumentationV2 {
 
+	/**
+	 * The pre-{@link NamingPipeline} representation of an obfuscation pattern,
+	 * kept for compatibility.
+	 */
 	public static class Obfuscation {
 
 		private String[] splitPattern;
@@ -66,330 +71,322 @@ public class TransactionNamer implements ServletInstrumentation {
 		}
 	}
 
-	public class Parameter {
+	private UriNormalizer uriNormalizer = new UriNormalizer(false, false, false, false, false, false, false);
+	private NamingPipeline pipeline = NamingPipeline.compile(new EmptyConfig(), "");
+	private LoadShedder loadShedder;
+	private ShadowEvaluator shadow;
 
-		private String name;
-		private String type;
+	private static final Logger LOGGER = NewRelic.getAgent().getLogger();
 
-		public Parameter(String pname, String ptype) {
-			setName(pname);
-			setType(ptype);
-		}
+	public String appendParameters(HttpServletRequest request) {
+		return pipeline.append(request);
+	}
 
-		public String getName() {
-			return name;
-		}
+	public String appendParameters(RequestView view) {
+		return pipeline.append(view);
+	}
 
-		public int getParamHash() {
-			return (name + type).hashCode();
-		}
+	public String groupURI(String URI) {
+		return pipeline.group(URI);
+	}
 
-		public String getType() {
-			return type;
-		}
+	public boolean isGroupingEnabled() {
+		return pipeline.isGroupingEnabled();
+	}
 
-		public void setName(String pname) {
-			name = pname;
-		}
+	public boolean isObfuscationEnabled() {
+		return pipeline.isObfuscationEnabled();
+	}
 
-		public void setType(String ptype) {
-			type = ptype;
-		}
+	public boolean isParameterAppendingEnabled() {
+		return pipeline.isParameterAppendingEnabled();
 	}
 
-	private Map<Integer, Parameter> parametersToAppend = new LinkedHashMap<Integer, Parameter>();
-	private Map<String, Obfuscation> obfuscationPatterns = new LinkedHashMap<String, Obfuscation>();
-	private LinkedList<Pattern> groupingPatterns = new LinkedList<Pattern>();
+	public String obfuscateURI(String URI) {
+		return pipeline.obfuscate(URI);
+	}
 
-	private static final Logger LOGGER = NewRelic.getAgent().getLogger();
+	/**
+	 * @return the compiled naming rules.
+	 */
+	public NamingPipeline getPipeline() {
+		return pipeline;
+	}
 
-	public String appendParameters(HttpServletRequest request) {
-		String appendParams = "";
-		for (Parameter thisParam : parametersToAppend.values()) {
-			String paramType = thisParam.getType();
-			String paramName = thisParam.getName();
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Append Parameters - Getting parameter type: " + paramType + " name: " + paramName);
-			String param = null;
-			if (paramType.equals("header")) {
-				param = request.getHeader(paramName);
-			} else if (paramType.equals("cookie")) {
-				Cookie[] requestCookies = request.getCookies();
-				if (requestCookies != null) {
-					for (Cookie cIsForCookie : requestCookies) {
-						if (cIsForCookie.getName().equalsIgnoreCase(paramName)) {
-							param = cIsForCookie.getValue();
-						}
-					}
-				}
-			} else if (paramType.equals("parameter")) {
-				param = request.getParameter(paramName);
-			} else {
-				LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Append Parameters - parameter type is not one of [cookie, header, parameter]");
-			}
+	/**
+	 * @return the load shedder, or {@code null} if load shedding is disabled.
+	 */
+	public LoadShedder getLoadShedder() {
+		return loadShedder;
+	}
 
-			if ((param != null) && !param.isEmpty()) {
-				LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Append Parameters - appending parameter value to transaction name: " + param);
-				appendParams += param + "/";
-			}
-		}
+	/**
+	 * @return the shadow evaluator, or {@code null} if shadow mode is disabled.
+	 */
+	public ShadowEvaluator getShadowEvaluator() {
+		return shadow;
+	}
 
-		if (appendParams.endsWith("/")) {
-			return appendParams.substring(0, appendParams.length() - 1);
-		} else {
-			return appendParams;
+	@Override
+	public void init(Config nrConfig) {
+		LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Initializing.");
+		uriNormalizer = UriNormalizer.fromConfig(nrConfig);
+		if (uriNormalizer.isEnabled()) {
+			LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - URI Normalizer - Enabled.");
+		}
+		pipeline = NamingPipeline.compile(nrConfig, "httpservlet_transaction_namer");
+		LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Compiled naming rules: {0}", pipeline.getRules());
+		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.name_cache.enabled"))) {
+			initNameCache(nrConfig);
+		}
+		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.load_shedding.enabled"))) {
+			final LoadShedder shedder = LoadShedder.fromConfig(nrConfig, "httpservlet_transaction_namer.load_shedding");
+			long intervalMillis = Utilities.getLong(nrConfig.getValue("httpservlet_transaction_namer.load_shedding.interval_millis"), 1000);
+			Utilities.getScheduler().scheduleAtFixedRate(shedder::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+			loadShedder = shedder;
+			LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Load Shedding - Enabled.");
+		}
+		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.shadow.enabled"))) {
+			initShadow(nrConfig);
 		}
 	}
 
-	public String groupURI(String URI) {
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - Grouping URI: " + URI);
-		for (Pattern aPattern : groupingPatterns) {
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - Checking against pattern: " + aPattern.toString());
-			Matcher URIMatcher = aPattern.matcher(URI);
-			if (URIMatcher.find()) {
-				LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - URI matched!");
-				String outputURI = "";
-				for (int i = 1; i <= URIMatcher.groupCount(); i++) {
-					outputURI += URIMatcher.group(i);
-				}
-				if (outputURI.isEmpty()) {
-					LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - URI matched but not grouped.");
-					LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - Check syntax of this pattern in newrelic.yml.");
-				} else {
-					LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - Grouped URI: " + outputURI);
-					return outputURI;
-				}
-			}
-		}
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - No (or group-less) matches for URI: " + URI);
-		return URI;
+	private void initShadow(Config nrConfig) {
+		final String prefix = "httpservlet_transaction_namer.shadow";
+		NamingPipeline candidate = NamingPipeline.compile(nrConfig, prefix);
+		final ShadowEvaluator evaluator = new ShadowEvaluator(
+			pipeline,
+			candidate,
+			Utilities.getDouble(nrConfig.getValue(prefix + ".sample_rate"), 0.01),
+			(int) Utilities.getLong(nrConfig.getValue(prefix + ".queue_size"), 1000),
+			(int) Utilities.getLong(nrConfig.getValue(prefix + ".max_disagreements"), 100)
+		);
+		long intervalMillis = Utilities.getLong(nrConfig.getValue(prefix + ".interval_millis"), 1000);
+		Utilities.getScheduler().scheduleWithFixedDelay(evaluator::drain, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		shadow = evaluator;
+		LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Shadow - Enabled with candidate rules: {0}", candidate.getRules());
 	}
 
-	private void initGroupings(Config nrConfig) {
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - initializing grouping patterns.");
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - initializing obfuscation patterns.");
-		List<String> txnPatterns = Utilities.getStringList(nrConfig.getValue("httpservlet_transaction_namer.name_obfuscator.patterns"));
-		if (txnPatterns == null) {
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - grouping patterns not defined.");
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - use \"patterns:\" in newrelic.yml with patterns in an indented list, or a space-delimited string.");
-			return;
-		}
+	private void initNameCache(Config nrConfig) {
+		final String prefix = "httpservlet_transaction_namer.name_cache.";
+		final NameCache cache = new NameCache((int) Utilities.getLong(nrConfig.getValue(prefix + "max_entries"), 10000));
+		pipeline.setCache(cache);
+		LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Name Cache - Enabled for up to {0} names.", cache.getMaxEntries());
 
-		for (String thisPattern : txnPatterns) {
-			try {
-				Pattern thisGrouping = Pattern.compile(thisPattern);
-				if (!groupingPatterns.contains(thisGrouping)) {
-					groupingPatterns.add(thisGrouping);
-				}
-			} catch (Exception e) {
-				LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Grouper - invalid pattern: " + thisPattern);
-			}
-		}
-	}
+		long evictSeconds = Utilities.getLong(nrConfig.getValue(prefix + "evict_interval_seconds"), 300);
+		Utilities.getScheduler().scheduleWithFixedDelay(cache::evictIdle, evictSeconds, evictSeconds, TimeUnit.SECONDS);
 
-	private void initObfuscations(Config nrConfig) {
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - initializing obfuscation patterns.");
-		List<String> txnPatterns = Utilities.getStringList(nrConfig.getValue("httpservlet_transaction_namer.name_obfuscator.patterns"));
-		if (txnPatterns == null) {
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - obfuscation patterns not defined.");
-			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - use \"patterns:\" in newrelic.yml with patterns in an indented list, or a space-delimited string.");
+		Object snapshotFile = nrConfig.getValue(prefix + "snapshot.file");
+		if (snapshotFile == null) {
 			return;
 		}
-
-		for (String thisPattern : txnPatterns) {
-			if (obfuscationPatterns.containsKey(thisPattern)) {
-				continue;
-			}
-      String[] patternSplit;
-      String fixedPattern = "";
-      if (thisPattern.matches("\\(\\?<\\w+>.*\\)")) {
-        LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - named group replacement defined.");
-        patternSplit = null;
-        fixedPattern += thisPattern;
-      } else {
-        patternSplit = thisPattern.split("/");
-        for (int i = 0; i < patternSplit.length; i++) {
-          if (patternSplit[i].startsWith("<") && patternSplit[i].endsWith(">")) {
-            if (patternSplit[i].contains(",")) {
-              String[] commaSplitPattern = patternSplit[i].split(",");
-              fixedPattern += commaSplitPattern[1].substring(0, commaSplitPattern[1].length() - 1);
-              patternSplit[i] = commaSplitPattern[0] + ">";
-            } else {
-              fixedPattern += "[^/]+";
-            }
-          } else {
-            fixedPattern += patternSplit[i];
-          }
-          if (patternSplit.length > (i + 1)) {
-            fixedPattern += "/";
-          }
-        }
-      }
-			obfuscationPatterns.put(thisPattern, new Obfuscation(patternSplit, Pattern.compile(fixedPattern)));
+		final NamingSnapshot snapshot = new NamingSnapshot(
+			Paths.get(snapshotFile.toString()),
+			(int) Utilities.getLong(nrConfig.getValue(prefix + "snapshot.max_entries"), 1000),
+			pipeline,
+			cache
+		);
+		snapshot.load();
+
+		if (Utilities.checkBoolean(nrConfig.getValue(prefix + "snapshot.read_only"))) {
+			return;
 		}
+		long writeSeconds = Utilities.getLong(nrConfig.getValue(prefix + "snapshot.interval_seconds"), 300);
+		Utilities.getScheduler().scheduleWithFixedDelay(snapshot::write, writeSeconds, writeSeconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(snapshot::write, "HTTPServlet-transaction-namer-snapshot"));
+	}
+
+	@Override
+	public void instrumentRequest(
+		HttpServletRequest request,
+		HttpServletResponse response,
+		Agent agent,
+		Transaction transaction
+	) throws ServletException, IOException {
+		countRequest();
+		nameRequest(request, null, transaction);
 	}
 
-	@SuppressWarnings("unchecked")
-	private void initAppendParameters(Config nrConfig) {
-		Object paramsObj = nrConfig.getValue("httpservlet_transaction_namer.append_parameters.parameters");
+	@Override
+	public void instrumentRequest(
+		RequestView view,
+		HttpServletResponse response,
+		Agent agent,
+		Transaction transaction
+	) throws ServletException, IOException {
+		countRequest();
+		nameRequest(view.getRequest(), view, transaction);
+	}
 
-		if ((paramsObj == null) || !(paramsObj instanceof List)) {
-			LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - parameters not defined.");
-			LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - use \"parameters:\" in newrelic.yml with parameters in an indented list.");
-			return;
-		}
-		for (Object thisParamObj : (List<Object>) paramsObj) {
-			if ((thisParamObj != null) && (thisParamObj instanceof Map)) {
-				Map<String, String> thisParamMap = (Map<String, String>) thisParamObj;
-				if ((thisParamMap != null) && thisParamMap.containsKey("name") && thisParamMap.containsKey("type")) {
-					String name = thisParamMap.get("name");
-					String type = thisParamMap.get("type");
-					int paramHashCode = (name + type).hashCode();
-					parametersToAppend.put(paramHashCode, new Parameter(name, type));
-				} else {
-					LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - incorrect syntax for parameter. use \"name:\" and \"type:\" for each parameter in an indented list.");
-				}
-			} else {
-				LOGGER.log(Level.SEVERE, "HTTPServlet-transaction-namer - Append Parameters - incorrect syntax for parameter. use \"name:\" and \"type:\" for each parameter in an indented list.");
-			}
+	/**
+	 * Count the request towards the load shedding rate threshold.  Called
+	 * once per request in the instrument phase, however it is named.
+	 */
+	protected void countRequest() {
+		final LoadShedder shedder = loadShedder;
+		if (shedder != null) {
+			shedder.onRequest();
 		}
 	}
 
-	public boolean isGroupingEnabled() {
-		return !groupingPatterns.isEmpty();
-	}
+	/**
+	 * Name the request with the rules, reading it through {@code view}
+	 * unless it is {@code null}.
+	 */
+	protected void nameRequest(HttpServletRequest request, RequestView view, Transaction transaction) {
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Activated for this request.");
+		}
+		final LoadShedder shedder = loadShedder;
+		if (shedder == null) {
+			applyResult(transaction, evaluate(request, view));
+			return;
+		}
 
-	public boolean isObfuscationEnabled() {
-		return !obfuscationPatterns.isEmpty();
+		final boolean sampled = shedder.sample();
+		final long start = sampled ? System.nanoTime() : 0L;
+		final LoadShedder.Mode mode = shedder.getMode();
+		// Sampled requests run all rules even when degraded, so the measured
+		// cost is always that of FULL and cannot hide the cost of recovering.
+		if (mode == LoadShedder.Mode.FULL || sampled) {
+			applyResult(transaction, evaluate(request, view));
+		} else {
+			applyDegraded(mode, request, view, transaction, shedder.getFallbackName());
+		}
+		if (sampled) {
+			shedder.recordCost(System.nanoTime() - start);
+		}
 	}
 
-	public boolean isParameterAppendingEnabled() {
-		return !parametersToAppend.isEmpty();
+	/**
+	 * Return the path to name: the view's normalized path if it was
+	 * normalized the same way, otherwise normalized by this namer.
+	 */
+	private String normalizedPath(HttpServletRequest request, RequestView view) {
+		if (view != null && uriNormalizer.equals(view.getNormalizer())) {
+			return view.getNormalizedPath();
+		}
+		return uriNormalizer.normalize(request);
 	}
 
-	public String obfuscateURI(String URI) {
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - checking URI: " + URI);
-
-		String outputURI = "";
-		for (Obfuscation aPattern : obfuscationPatterns.values()) {
-      LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - checking against pattern: " + aPattern.getPattern().toString());
-      if (aPattern.getPattern() != null && aPattern.getPattern().pattern().matches("\\(\\?<\\w+>.*\\)")) {
-        // Named group replacement
-        String namedGroupRegex = "\\(\\?<(\\w+)>(.*)\\)";
-        Pattern namedGroupPattern = Pattern.compile(namedGroupRegex);
-        Matcher namedGroupMatcher = namedGroupPattern.matcher(aPattern.getPattern().pattern());
-        if (namedGroupMatcher.matches() && namedGroupMatcher.groupCount() == 2) {
-					LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - URI matched named group: " + namedGroupMatcher.group(1) + ", pattern: " + namedGroupMatcher.group(2));
-					String name = namedGroupMatcher.group(1);
-          String pattern = namedGroupMatcher.group(2);
-          outputURI = URI.replaceAll(pattern, "<" + name + ">");
-					break;
-        }
-      } else {
-        String[] splitPattern = aPattern.getSplitPattern();
-        Matcher URIMatcher = aPattern.getPattern().matcher(URI);
-        if (URIMatcher.find()) {
-          LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - URI matched pattern: " + aPattern.getPattern().toString());
-					String[] URISplit;
-					if(URI.startsWith("/")) {
-						outputURI += "/";
-						URISplit = URI.substring(1).split("\\/");
-					} else {
-						URISplit = URI.split("\\/");
-					}
-					if (aPattern.getSplitPatternLength() > URISplit.length) {
-						continue;
-					}
-					for (int i = 0; i < URISplit.length; i++) {
-            if (splitPattern[i].startsWith("<") && splitPattern[i].endsWith(">")) {
-              outputURI += splitPattern[i];
-					  } else {
-              outputURI += URISplit[i];
-					  }
-            if (URISplit.length > (i + 1)) {
-              outputURI += "/";
-					  }
-          }
-          break;
-        }
-      }
+	private NamingPipeline.Result evaluate(HttpServletRequest request, RequestView view) {
+		String uri = normalizedPath(request, view);
+		NamingPipeline.Result result = view == null ? pipeline.evaluate(uri, request) : pipeline.evaluate(uri, view);
+		final ShadowEvaluator shadow = this.shadow;
+		if (shadow != null) {
+			shadow.offer(uri, result.getName());
 		}
+		return result;
+	}
 
-		if (outputURI.isEmpty()) {
-      LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - no patterns matched to: " + URI);
-			return URI;
+	private void applyResult(Transaction transaction, NamingPipeline.Result result) {
+		if (result.getUriAttribute() != null) {
+			addObfuscatedAttributes(result.getUriAttribute(), result.getRefererAttribute());
 		}
 
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Name Obfuscator - obfuscated URI: " + outputURI);
-		return outputURI;
+		setTransactionName(transaction, result.getName(), result.getAppended());
 	}
 
-	@Override
-	public void init(Config nrConfig) {
-		LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Initializing.");
-		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.append_parameters.enabled"))) {
-			LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Append Parameters - Enabled.");
-			initAppendParameters(nrConfig);
+	/**
+	 * Name the request without running the rules: from the name cache, from
+	 * the literal prefix of a rule, or with the fallback name.  When
+	 * obfuscating, the referer attribute is replaced by the fallback name.
+	 */
+	private void applyDegraded(LoadShedder.Mode mode, HttpServletRequest request, RequestView view, Transaction transaction, String fallbackName) {
+		String name = null;
+		String appended = "";
+		if (mode != LoadShedder.Mode.FALLBACK) {
+			String uri = normalizedPath(request, view);
+			if (mode == LoadShedder.Mode.CACHE_ONLY) {
+				name = pipeline.cachedName(uri);
+				if (name != null) {
+					appended = view == null ? pipeline.append(request) : pipeline.append(view);
+				}
+			}
+			if (name == null) {
+				name = pipeline.prefixName(uri);
+			}
 		}
-		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.name_obfuscator.enabled"))) {
-			LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Name Obfuscator - Enabled.");
-			initObfuscations(nrConfig);
+		if (name == null) {
+			name = fallbackName;
 		}
-		if (Utilities.checkBoolean(nrConfig.getValue("httpservlet_transaction_namer.name_grouper.enabled"))) {
-			LOGGER.log(Level.INFO, "HTTPServlet-transaction-namer - Name Grouper - Enabled.");
-			initGroupings(nrConfig);
+
+		if (pipeline.isObfuscationEnabled()) {
+			String referer = view == null ? request.getHeader("referer") : view.getHeader("referer");
+			addObfuscatedAttributes(name, referer == null ? null : fallbackName);
+		}
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Load Shedding - named request in mode {0}", mode);
 		}
+		setTransactionName(transaction, name, appended);
 	}
 
-	@Override
-	public void instrumentRequest(
-		HttpServletRequest request,
-		HttpServletResponse response,
-		Agent agent,
-		Transaction transaction
-	) throws ServletException, IOException {
-		LOGGER.log(Level.FINER, "HTTPServlet-transaction-namer - Activated for this request.");
-		String txnAppend = "";
-		String URI = request.getRequestURI();
+	/**
+	 * Report the obfuscated {@code URI} and referer as attributes on the
+	 * Transaction Event.
+	 */
+	protected void addObfuscatedAttributes(HttpServletRequest request, String URI) {
+		addObfuscatedAttributes(URI, pipeline.obfuscateReferer(request));
+	}
 
-		if(isGroupingEnabled()) {
-			URI = groupURI(URI);
-		}
+	protected void addObfuscatedAttributes(RequestView view, String URI) {
+		addObfuscatedAttributes(URI, pipeline.obfuscateReferer(view));
+	}
 
-		if(isObfuscationEnabled()) {
-			URI = obfuscateURI(URI);
-			// If the request.uri attribute is not excluded, obfuscate it on the Transaction Event
-			// As of Sept 20, 2019 the UI still populates fields labelled 'URI' and 'HTTP referer' with the non-obfuscated values
-			NewRelic.addCustomParameter("request.uri", URI);
-			// If request.ui is excluded, create an obfuscated custom attribute on the Transaction Event
-			NewRelic.addCustomParameter("custom.request.uri", URI);
-
-			String referer = request.getHeader("referer");
-			if (referer != null) {
-				String obfuscatedReferer = obfuscateURI(referer);
-				// If the request.headers.referer attribute is not excluded, obfuscate it on the Transaction Event
-				// As of Sept 20, 2019 the UI still populates fields labelled 'URI' and 'HTTP referer' with the non-obfuscated values
-				NewRelic.addCustomParameter("request.headers.referer", obfuscatedReferer);
-				// If request.headers.referer is excluded, create an obfuscated custom attribute on the Transaction Event
-				NewRelic.addCustomParameter("custom.request.headers.referer", obfuscatedReferer);
-			}
-		}
+	private void addObfuscatedAttributes(String URI, String obfuscatedReferer) {
+		// If the request.uri attribute is not excluded, obfuscate it on the Transaction Event
+		// As of Sept 20, 2019 the UI still populates fields labelled 'URI' and 'HTTP referer' with the non-obfuscated values
+		NewRelic.addCustomParameter("request.uri", URI);
+		// If request.ui is excluded, create an obfuscated custom attribute on the Transaction Event
+		NewRelic.addCustomParameter("custom.request.uri", URI);
 
-		if(isParameterAppendingEnabled()) {
-			txnAppend = appendParameters(request);
+		if (obfuscatedReferer != null) {
+			// If the request.headers.referer attribute is not excluded, obfuscate it on the Transaction Event
+			// As of Sept 20, 2019 the UI still populates fields labelled 'URI' and 'HTTP referer' with the non-obfuscated values
+			NewRelic.addCustomParameter("request.headers.referer", obfuscatedReferer);
+			// If request.headers.referer is excluded, create an obfuscated custom attribute on the Transaction Event
+			NewRelic.addCustomParameter("custom.request.headers.referer", obfuscatedReferer);
 		}
+	}
 
+	/**
+	 * Name the {@code transaction} from the (grouped / obfuscated) {@code URI}
+	 * and the appended parameters.
+	 */
+	protected void setTransactionName(Transaction transaction, String URI, String txnAppend) {
 		if (URI != null && !URI.isEmpty()) {
+			final boolean isLoggingFiner = LOGGER.isLoggable(Level.FINER);
 			if(txnAppend == null ||  txnAppend.isEmpty()) {
-				LOGGER.log(Level.FINER,
-					"HTTPServlet-transaction-namer - setting transaction name to: " + URI);
+				if (isLoggingFiner) {
+					LOGGER.log(Level.FINER,
+						"HTTPServlet-transaction-namer - setting transaction name to: " + URI);
+				}
 				transaction.setTransactionName(TransactionNamePriority.CUSTOM_HIGH,
 					false, "HTTPServlet", URI);
 			} else {
-				LOGGER.log(Level.FINER,
-					"HTTPServlet-transaction-namer - setting transaction name to: " + URI + "/" + txnAppend);
+				if (isLoggingFiner) {
+					LOGGER.log(Level.FINER,
+						"HTTPServlet-transaction-namer - setting transaction name to: " + URI + "/" + txnAppend);
+				}
 				transaction.setTransactionName(TransactionNamePriority.CUSTOM_HIGH,
 					false, "HTTPServlet", URI, txnAppend);
 			}
 		}
 	}
+
+	/**
+	 * Configuration without any values, used before {@link #init(Config)}.
+	 */
+	private static class EmptyConfig implements Config {
+
+		@Override
+		public <T> T getValue(String key) {
+			return null;
+		}
+
+		@Override
+		public <T> T getValue(String key, T defaultVal) {
+			return defaultVal;
+		}
+	}
 }
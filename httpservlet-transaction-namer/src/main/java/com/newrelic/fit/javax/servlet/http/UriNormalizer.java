@@ -0,0 +1,248 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.newrelic.api.agent.Config;
+
+/**
+ * Normalizes request URIs before the naming rules are evaluated.
+ *
+ * Variants of the same URI such as {@code /a;jsessionid=1//B/} and
+ * {@code /a/B} otherwise produce separate transaction names.  All enabled
+ * normalizations are applied in a single scan of the URI, and a new
+ * {@link String} is only allocated when something actually changes.
+ *
+ * Configured in the {@code httpservlet_transaction_namer.uri_normalizer}
+ * section of {@code newrelic.yml}.
+ */
+public class UriNormalizer {
+
+  private static final String PREFIX = "httpservlet_transaction_namer.uri_normalizer.";
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * A normalizer that returns the raw request URI.
+   */
+  public static final UriNormalizer DISABLED = new UriNormalizer(false, false, false, false, false, false, false);
+
+  private final boolean enabled;
+  private final boolean useServletPath;
+  private final boolean stripPathParameters;
+  private final boolean collapseSlashes;
+  private final boolean stripTrailingSlash;
+  private final boolean normalizePercentEncoding;
+  private final boolean lowerCase;
+
+  public UriNormalizer(
+      boolean enabled,
+      boolean useServletPath,
+      boolean stripPathParameters,
+      boolean collapseSlashes,
+      boolean stripTrailingSlash,
+      boolean normalizePercentEncoding,
+      boolean lowerCase
+  ) {
+    this.enabled = enabled;
+    this.useServletPath = useServletPath;
+    this.stripPathParameters = stripPathParameters;
+    this.collapseSlashes = collapseSlashes;
+    this.stripTrailingSlash = stripTrailingSlash;
+    this.normalizePercentEncoding = normalizePercentEncoding;
+    this.lowerCase = lowerCase;
+  }
+
+  /**
+   * Create a normalizer from the agent configuration.  All normalizations
+   * except {@code lower_case} and {@code use_servlet_path} default to on
+   * once the normalizer is enabled.
+   *
+   * @param config the New Relic Agent configuration.
+   * @return the configured normalizer.
+   */
+  public static UriNormalizer fromConfig(Config config) {
+    return new UriNormalizer(
+        Utilities.checkBoolean(config.getValue(PREFIX + "enabled")),
+        Utilities.checkBoolean(config.getValue(PREFIX + "use_servlet_path")),
+        checkBoolean(config, "strip_path_parameters", true),
+        checkBoolean(config, "collapse_slashes", true),
+        checkBoolean(config, "strip_trailing_slash", true),
+        checkBoolean(config, "normalize_percent_encoding", true),
+        checkBoolean(config, "lower_case", false)
+    );
+  }
+
+  private static boolean checkBoolean(Config config, String key, boolean defaultValue) {
+    Object value = config.getValue(PREFIX + key);
+    return value == null ? defaultValue : Utilities.checkBoolean(value);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Return the normalized path of the {@code request}.
+   *
+   * @param request the HTTP servlet request.
+   * @return the normalized path, or the raw request URI if disabled.
+   */
+  public String normalize(HttpServletRequest request) {
+    if (!enabled) {
+      return request.getRequestURI();
+    }
+    if (useServletPath) {
+      String servletPath = request.getServletPath();
+      String pathInfo = request.getPathInfo();
+      if (servletPath != null) {
+        return normalize(pathInfo == null ? servletPath : servletPath + pathInfo);
+      }
+    }
+    return normalize(request.getRequestURI());
+  }
+
+  /**
+   * Normalize the {@code uri} in a single scan.
+   *
+   * @param uri the URI to normalize.
+   * @return the normalized URI, or {@code uri} itself if nothing changed.
+   */
+  public String normalize(String uri) {
+    if (!enabled || uri == null) {
+      return uri;
+    }
+
+    final int length = uri.length();
+    // Created on the first change; until then the output equals uri[0, i).
+    StringBuilder out = null;
+    char last = 0;
+    int i = 0;
+    while (i < length) {
+      char c = uri.charAt(i);
+
+      if (c == ';' && stripPathParameters) {
+        int next = uri.indexOf('/', i);
+        if (next < 0) {
+          next = length;
+        }
+        out = startCopy(out, uri, i);
+        i = next;
+        continue;
+      }
+
+      if (c == '/' && collapseSlashes && last == '/') {
+        out = startCopy(out, uri, i);
+        i++;
+        continue;
+      }
+
+      if (c == '%' && normalizePercentEncoding && i + 2 < length) {
+        int high = Utilities.hexDigit(uri.charAt(i + 1));
+        int low = Utilities.hexDigit(uri.charAt(i + 2));
+        if (high >= 0 && low >= 0) {
+          char decoded = (char) ((high << 4) | low);
+          if (isUnreserved(decoded)) {
+            out = startCopy(out, uri, i);
+            last = lowerCase ? toLowerCase(decoded) : decoded;
+            out.append(last);
+          } else if (isLowerCase(uri.charAt(i + 1)) || isLowerCase(uri.charAt(i + 2))) {
+            // Keep the escape, but with upper case hex digits.
+            out = startCopy(out, uri, i);
+            last = HEX[low];
+            out.append('%').append(HEX[high]).append(last);
+          } else {
+            if (out != null) {
+              out.append(uri, i, i + 3);
+            }
+            last = uri.charAt(i + 2);
+          }
+          i += 3;
+          continue;
+        }
+      }
+
+      if (lowerCase && c >= 'A' && c <= 'Z') {
+        out = startCopy(out, uri, i);
+        c = toLowerCase(c);
+      }
+
+      if (out != null) {
+        out.append(c);
+      }
+      last = c;
+      i++;
+    }
+
+    if (stripTrailingSlash && last == '/') {
+      if (out == null) {
+        return length > 1 ? uri.substring(0, length - 1) : uri;
+      }
+      if (out.length() > 1) {
+        out.setLength(out.length() - 1);
+      }
+    }
+
+    return out == null ? uri : out.toString();
+  }
+
+  /**
+   * Two normalizers are equal if they produce the same paths.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof UriNormalizer)) {
+      return false;
+    }
+    UriNormalizer other = (UriNormalizer) obj;
+    if (!enabled || !other.enabled) {
+      return enabled == other.enabled;
+    }
+    return useServletPath == other.useServletPath
+        && stripPathParameters == other.stripPathParameters
+        && collapseSlashes == other.collapseSlashes
+        && stripTrailingSlash == other.stripTrailingSlash
+        && normalizePercentEncoding == other.normalizePercentEncoding
+        && lowerCase == other.lowerCase;
+  }
+
+  @Override
+  public int hashCode() {
+    if (!enabled) {
+      return 0;
+    }
+    return 1
+        | (useServletPath ? 2 : 0)
+        | (stripPathParameters ? 4 : 0)
+        | (collapseSlashes ? 8 : 0)
+        | (stripTrailingSlash ? 16 : 0)
+        | (normalizePercentEncoding ? 32 : 0)
+        | (lowerCase ? 64 : 0);
+  }
+
+  private static StringBuilder startCopy(StringBuilder out, String uri, int end) {
+    if (out != null) {
+      return out;
+    }
+    StringBuilder copy = new StringBuilder(uri.length());
+    copy.append(uri, 0, end);
+    return copy;
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || c == '-' || c == '.' || c == '_' || c == '~';
+  }
+
+  private static boolean isLowerCase(char c) {
+    return c >= 'a' && c <= 'z';
+  }
+
+  private static char toLowerCase(char c) {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+}
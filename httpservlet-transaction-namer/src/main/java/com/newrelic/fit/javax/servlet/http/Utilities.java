@@ -1,7 +1,11 @@
 package com.newrelic.fit.javax.servlet.http;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Common utilities for HTTPServlet-Transaction-Namer
@@ -11,6 +15,8 @@ import java.util.List;
 @SuppressWarnings("unchecked")
 public class Utilities {
 
+  private static volatile ScheduledExecutorService SCHEDULER;
+
   // If it's a non-empty List of Strings
   // or a String (which it attempts to split via spaces),
   // returns a List of Strings.
@@ -45,4 +51,190 @@ public class Utilities {
 			return false;
 		}
 	}
+
+  // Used to read numbers,
+  // whether they come in as Numbers (from Yaml config)
+  // or strings (from Java properties).
+  // Returns defaultValue if missing or not a number.
+  public static long getLong(Object toCheck, long defaultValue) {
+    if (toCheck instanceof Number) {
+      return ((Number) toCheck).longValue();
+    } else if (toCheck instanceof String) {
+      try {
+        return Long.parseLong(((String) toCheck).trim());
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+    return defaultValue;
+  }
+
+  // Same as getLong(), for fractional numbers such as ratios.
+  public static double getDouble(Object toCheck, double defaultValue) {
+    if (toCheck instanceof Number) {
+      return ((Number) toCheck).doubleValue();
+    } else if (toCheck instanceof String) {
+      try {
+        return Double.parseDouble(((String) toCheck).trim());
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+    return defaultValue;
+  }
+
+  // Returns the single daemon thread used for background work such as
+  // writing snapshots, created on first use.
+  public static ScheduledExecutorService getScheduler() {
+    if (SCHEDULER == null) {
+      synchronized (Utilities.class) {
+        if (SCHEDULER == null) {
+          SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "HTTPServlet-transaction-namer");
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
+      }
+    }
+    return SCHEDULER;
+  }
+
+  // Scans an undecoded query string (as returned by
+  // HttpServletRequest.getQueryString()) once, filling values[i] with the
+  // first value found for names[i].  Keys are compared in place, and only
+  // the values of matched keys are decoded; everything else is skipped.
+  // Never reads the request body.  Returns the number of names found.
+  public static int findQueryParameters(String queryString, String[] names, String[] values) {
+    if (queryString == null || queryString.isEmpty() || names.length == 0) {
+      return 0;
+    }
+
+    int found = 0;
+    int start = 0;
+    final int length = queryString.length();
+    while (start < length && found < names.length) {
+      int end = queryString.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      int equals = queryString.indexOf('=', start);
+      if (equals < 0 || equals > end) {
+        equals = end;
+      }
+
+      // A key carrying escapes is decoded while it is compared.
+      boolean escaped = needsDecoding(queryString, start, equals);
+      for (int i = 0; i < names.length; i++) {
+        if (values[i] != null) {
+          continue;
+        }
+        boolean matches = escaped
+            ? escapedKeyMatches(queryString, start, equals, names[i])
+            : keyMatches(queryString, start, equals, names[i]);
+        if (matches) {
+          values[i] = decode(queryString, Math.min(equals + 1, end), end);
+          found++;
+        }
+      }
+      start = end + 1;
+    }
+    return found;
+  }
+
+  private static boolean keyMatches(String queryString, int start, int end, String name) {
+    return (end - start) == name.length() && queryString.regionMatches(start, name, 0, name.length());
+  }
+
+  // Compares the escaped key s[start, end) to name, decoding one '+' or
+  // UTF-8 sequence of %XX escapes at a time.  A malformed escape is compared
+  // as is, as decode() leaves such a string undecoded.
+  private static boolean escapedKeyMatches(String s, int start, int end, String name) {
+    int n = 0;
+    int i = start;
+    while (i < end) {
+      int codePoint;
+      char c = s.charAt(i);
+      if (c == '+') {
+        codePoint = ' ';
+        i++;
+      } else if (c != '%') {
+        codePoint = s.codePointAt(i);
+        i += Character.charCount(codePoint);
+      } else {
+        int b = hexByte(s, i, end);
+        if (b < 0) {
+          return keyMatches(s, start, end, name);
+        }
+        i += 3;
+        int continuations = b < 0x80 ? 0 : b >= 0xF0 ? 3 : b >= 0xE0 ? 2 : b >= 0xC0 ? 1 : -1;
+        if (continuations < 0) {
+          return false;
+        }
+        codePoint = continuations == 0 ? b : b & (0x3F >> continuations);
+        for (int k = 0; k < continuations; k++) {
+          int continuation = hexByte(s, i, end);
+          if (continuation < 0) {
+            return keyMatches(s, start, end, name);
+          }
+          if ((continuation & 0xC0) != 0x80) {
+            return false;
+          }
+          codePoint = (codePoint << 6) | (continuation & 0x3F);
+          i += 3;
+        }
+      }
+      if (n >= name.length() || name.codePointAt(n) != codePoint) {
+        return false;
+      }
+      n += Character.charCount(codePoint);
+    }
+    return n == name.length();
+  }
+
+  // Returns the byte of the %XX escape at s[i], or -1 if it is malformed.
+  private static int hexByte(String s, int i, int end) {
+    if (i + 2 >= end) {
+      return -1;
+    }
+    int high = hexDigit(s.charAt(i + 1));
+    int low = hexDigit(s.charAt(i + 2));
+    return high < 0 || low < 0 ? -1 : (high << 4) | low;
+  }
+
+  // Only ASCII hex digits: Character.digit() also accepts other scripts.
+  static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+
+  private static boolean needsDecoding(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '%' || c == '+') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String decode(String s, int start, int end) {
+    String raw = s.substring(start, end);
+    if (!needsDecoding(s, start, end)) {
+      return raw;
+    }
+    try {
+      return URLDecoder.decode(raw, "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return raw;
+    }
+  }
 }
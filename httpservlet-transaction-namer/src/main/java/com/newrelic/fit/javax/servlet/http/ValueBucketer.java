@@ -0,0 +1,271 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of distinct values an appended parameter adds to
+ * transaction names.
+ *
+ * A value is first checked against the optional allow-list, then cut to
+ * {@code maxLength} characters, and finally counted in a fixed-size
+ * Space-Saving summary of the most frequent values.  Only the {@code topK}
+ * values with the highest guaranteed counts are appended as-is; every other
+ * value is replaced by {@link #OTHER}.
+ *
+ * The summary is a Stream-Summary: counters hang off a list of buckets
+ * ordered by count, so counting a value, or replacing the least frequent
+ * one, takes constant time.  Request threads never wait for it: a value is
+ * only counted if no other thread holds the summary at the same time,
+ * which samples values in proportion to their frequency.  After every
+ * {@code 4 * topK} observations (more often right after startup) the top
+ * values are recomputed on the background thread, in O(k log k), and
+ * published for lock-free lookups.
+ */
+public class ValueBucketer {
+
+  /**
+   * The value appended in place of values that are not kept.
+   */
+  public static final String OTHER = "other";
+
+  private static final Comparator<Counter> BY_GUARANTEED_COUNT = new Comparator<Counter>() {
+    @Override
+    public int compare(Counter a, Counter b) {
+      return Long.compare(b.count - b.error, a.count - a.error);
+    }
+  };
+
+  /**
+   * An approximate count of a monitored value.  {@code count - error} is a
+   * lower bound of the true count.
+   */
+  private static final class Counter {
+    private String value;
+    private long count;
+    private long error;
+    private Bucket bucket;
+    private Counter previous;
+    private Counter next;
+  }
+
+  /**
+   * The counters with the same count, linked in order of count.
+   */
+  private static final class Bucket {
+    private long count;
+    private Counter first;
+    private Bucket previous;
+    private Bucket next;
+  }
+
+  private final Set<String> allowList;
+  private final int maxLength;
+  private final int topK;
+
+  // Stream-Summary, guarded by lock.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<String, Counter> counters;
+  private final Counter[] sorted;
+  private int size;
+  private Bucket lowest;
+  private Bucket spare;
+  private long sinceRecompute;
+  private long recomputeInterval = 1;
+  private boolean recomputePending;
+
+  private final Executor executor;
+  private final Runnable recomputeTask = this::recompute;
+
+  private volatile Set<String> topValues = Collections.emptySet();
+
+  /**
+   * @param allowList the values to keep, or {@code null} to keep any value.
+   * @param maxLength the maximum value length, or 0 for no limit.
+   * @param topK the number of most frequent values to keep, or 0 for no
+   * limit.
+   */
+  public ValueBucketer(Collection<String> allowList, int maxLength, int topK) {
+    this(allowList, maxLength, topK, topK > 0 ? Utilities.getScheduler() : null);
+  }
+
+  /**
+   * @param executor runs the recomputation of the top values.
+   */
+  ValueBucketer(Collection<String> allowList, int maxLength, int topK, Executor executor) {
+    this.executor = executor;
+    this.allowList = allowList == null ? null : new HashSet<String>(allowList);
+    this.maxLength = maxLength;
+    this.topK = topK;
+    int capacity = topK > 0 ? topK * 4 : 0;
+    this.counters = new HashMap<String, Counter>(capacity * 2);
+    this.sorted = new Counter[capacity];
+  }
+
+  /**
+   * Map a parameter value to the value to append.
+   *
+   * @param value the non-empty parameter value.
+   * @return the value, its prefix, or {@link #OTHER}.
+   */
+  public String bucket(String value) {
+    if (allowList != null && !allowList.contains(value)) {
+      return OTHER;
+    }
+    if (maxLength > 0 && value.length() > maxLength) {
+      value = value.substring(0, maxLength);
+    }
+    if (topK <= 0) {
+      return value;
+    }
+    if (lock.tryLock()) {
+      try {
+        observe(value);
+      } finally {
+        lock.unlock();
+      }
+    }
+    return topValues.contains(value) ? value : OTHER;
+  }
+
+  private void observe(String value) {
+    Counter counter = counters.get(value);
+    if (counter != null) {
+      increment(counter);
+    } else if (size < sorted.length) {
+      counter = new Counter();
+      counter.value = value;
+      counter.count = 1;
+      counters.put(value, counter);
+      sorted[size++] = counter;
+      if (lowest == null || lowest.count != 1) {
+        Bucket bucket = newBucket(1);
+        bucket.next = lowest;
+        if (lowest != null) {
+          lowest.previous = bucket;
+        }
+        lowest = bucket;
+      }
+      attach(counter, lowest);
+    } else {
+      // Replace a least frequent value; its count becomes the error bound.
+      Counter min = lowest.first;
+      counters.remove(min.value);
+      min.value = value;
+      min.error = min.count;
+      counters.put(value, min);
+      increment(min);
+    }
+
+    if (++sinceRecompute >= recomputeInterval && !recomputePending) {
+      sinceRecompute = 0;
+      recomputeInterval = Math.min(recomputeInterval * 2, sorted.length);
+      recomputePending = true;
+      executor.execute(recomputeTask);
+    }
+  }
+
+  /**
+   * Move {@code counter} to the bucket of the next higher count.
+   */
+  private void increment(Counter counter) {
+    Bucket from = counter.bucket;
+    long count = ++counter.count;
+    Bucket to = from.next;
+    if (to == null || to.count != count) {
+      to = newBucket(count);
+      to.previous = from;
+      to.next = from.next;
+      if (from.next != null) {
+        from.next.previous = to;
+      }
+      from.next = to;
+    }
+    detach(counter);
+    attach(counter, to);
+  }
+
+  private static void attach(Counter counter, Bucket bucket) {
+    counter.bucket = bucket;
+    counter.previous = null;
+    counter.next = bucket.first;
+    if (bucket.first != null) {
+      bucket.first.previous = counter;
+    }
+    bucket.first = counter;
+  }
+
+  private void detach(Counter counter) {
+    Bucket bucket = counter.bucket;
+    if (counter.previous != null) {
+      counter.previous.next = counter.next;
+    } else {
+      bucket.first = counter.next;
+    }
+    if (counter.next != null) {
+      counter.next.previous = counter.previous;
+    }
+    if (bucket.first != null) {
+      return;
+    }
+
+    // Unlink the empty bucket and keep it for reuse.
+    if (bucket.previous != null) {
+      bucket.previous.next = bucket.next;
+    } else {
+      lowest = bucket.next;
+    }
+    if (bucket.next != null) {
+      bucket.next.previous = bucket.previous;
+    }
+    bucket.previous = null;
+    bucket.next = spare;
+    spare = bucket;
+  }
+
+  private Bucket newBucket(long count) {
+    Bucket bucket = spare;
+    if (bucket == null) {
+      bucket = new Bucket();
+    } else {
+      spare = bucket.next;
+      bucket.next = null;
+    }
+    bucket.count = count;
+    return bucket;
+  }
+
+  /**
+   * Publish the {@code topK} values with the highest guaranteed counts.
+   * Request threads skip counting while this holds the lock.
+   */
+  void recompute() {
+    Set<String> top = new HashSet<String>(topK * 2);
+    lock.lock();
+    try {
+      recomputePending = false;
+      Arrays.sort(sorted, 0, size, BY_GUARANTEED_COUNT);
+      for (int i = 0; i < Math.min(topK, size); i++) {
+        top.add(sorted[i].value);
+      }
+      topValues = top;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the values currently appended as-is, if {@code topK} is set.
+   */
+  public Set<String> getTopValues() {
+    return Collections.unmodifiableSet(topValues);
+  }
+}
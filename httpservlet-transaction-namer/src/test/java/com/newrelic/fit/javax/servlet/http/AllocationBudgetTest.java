@@ -0,0 +1,201 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import com.newrelic.api.agent.Agent;
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.NewRelic;
+import com.newrelic.api.agent.Transaction;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Allocation budgets for the per-request path.
+ *
+ * Every scenario measures the bytes allocated per call with the per-thread
+ * allocation counter of {@link com.sun.management.ThreadMXBean} and fails
+ * when a budget is exceeded.  The budgets include the request stub, which
+ * allocates an argument array per call.  Each budget is the figure
+ * measured on a 64-bit HotSpot JVM with compressed references plus about
+ * 64 bytes of headroom, so a single extra object on the request path fails
+ * the test.  Object sizes differ on other JVMs, so the tests are skipped
+ * there.  A scenario is measured in rounds until the JIT has settled and
+ * the lowest figure counts.  Lower a budget when an allocation is removed
+ * from the request path; never raise one without a reason.
+ */
+class AllocationBudgetTest {
+
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int MEASURED_ITERATIONS = 10000;
+  private static final int MAX_ROUNDS = 5;
+
+  private static final com.sun.management.ThreadMXBean THREADS
+      = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final Agent agent = NewRelic.getAgent();
+  private final Transaction transaction = agent.getTransaction();
+  private final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+      AllocationBudgetTest.class.getClassLoader(),
+      new Class<?>[] { HttpServletResponse.class },
+      (proxy, method, args) -> null
+  );
+
+  private Config config;
+  private TransactionNamer namer;
+  private ServletInstrumentationManager manager;
+
+  @BeforeEach
+  void setUp() {
+    assumeTrue(THREADS.isThreadAllocatedMemorySupported(), "thread allocation counter not supported");
+    assumeTrue(usesCompressedOops(), "budgets assume a 64-bit HotSpot JVM with compressed references");
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+
+    Map<String, Object> config = new HashMap<>();
+    config.put("httpservlet_transaction_namer.name_grouper.enabled", true);
+    config.put("httpservlet_transaction_namer.name_grouper.patterns", Arrays.asList(
+        "(\\/jpetstore_web\\/[^.]*)\\..*",
+        "(\\/jpetstore_web\\/accounts\\/)[^\\/]+\\/(.*)"
+    ));
+    config.put("httpservlet_transaction_namer.name_obfuscator.enabled", true);
+    config.put("httpservlet_transaction_namer.name_obfuscator.patterns", Arrays.asList(
+        "AncillaryApplication/<recLoc,\\w{3}>/<lastName,\\w+>",
+        "(?<obfuscatedVin>[A-Za-z\\d]{11}\\d{6})"
+    ));
+    config.put("httpservlet_transaction_namer.append_parameters.enabled", true);
+    config.put("httpservlet_transaction_namer.append_parameters.parameters", Arrays.asList(
+        parameter("categoryId", "query"),
+        parameter("host", "header")
+    ));
+
+    this.config = TestConfigs.of(config);
+    namer = new TransactionNamer();
+    namer.init(this.config);
+    manager = new ServletInstrumentationManager(
+        Collections.<ServletInstrumentation>singletonList(namer)
+    );
+  }
+
+  @Test
+  void noMatch() {
+    HttpServletRequest request = TestRequests.request("/static/app.css", null, null);
+    assertWithinBudget("instrumentRequest / no match", 192, instrumentRequest(request));
+    assertWithinBudget("applyInstrumentations / no match", 192, applyInstrumentations(request));
+  }
+
+  @Test
+  void groupingMatch() {
+    HttpServletRequest request = TestRequests.request("/jpetstore_web/catalog/Item.jsp", null, null);
+    assertWithinBudget("instrumentRequest / grouping", 240, instrumentRequest(request));
+    assertWithinBudget("applyInstrumentations / grouping", 240, applyInstrumentations(request));
+  }
+
+  @Test
+  void templateObfuscation() {
+    HttpServletRequest request = TestRequests.request("/AncillaryApplication/HEL/Kapanen", null, null);
+    assertWithinBudget("instrumentRequest / template obfuscation", 256, instrumentRequest(request));
+    assertWithinBudget("applyInstrumentations / template obfuscation", 256, applyInstrumentations(request));
+  }
+
+  @Test
+  void namedGroupObfuscation() {
+    HttpServletRequest request = TestRequests.request("/vehicleimage/WV1ZZZ7HZHH161837/etc", null, null);
+    assertWithinBudget("instrumentRequest / named group obfuscation", 224, instrumentRequest(request));
+    assertWithinBudget("applyInstrumentations / named group obfuscation", 224, applyInstrumentations(request));
+  }
+
+  @Test
+  void appendedParameters() {
+    HttpServletRequest request = TestRequests.request("/static/app.css", "view=list&categoryId=FISH", "shop.example.com");
+    assertWithinBudget("instrumentRequest / appended parameters", 400, instrumentRequest(request));
+    assertWithinBudget("applyInstrumentations / appended parameters", 400, applyInstrumentations(request));
+  }
+
+  @Test
+  void sharedView() {
+    TransactionNamer second = new TransactionNamer();
+    second.init(config);
+    ServletInstrumentationManager sharing = new ServletInstrumentationManager(
+        Arrays.<ServletInstrumentation>asList(namer, second)
+    );
+    HttpServletRequest request = TestRequests.request("/static/app.css", "view=list&categoryId=FISH", "shop.example.com");
+    assertWithinBudget("applyInstrumentations / two namers sharing a view", 800,
+        () -> sharing.applyInstrumentations(request, response));
+  }
+
+  private RequestCall instrumentRequest(HttpServletRequest request) {
+    return () -> namer.instrumentRequest(request, response, agent, transaction);
+  }
+
+  private RequestCall applyInstrumentations(HttpServletRequest request) {
+    return () -> manager.applyInstrumentations(request, response);
+  }
+
+  private static void assertWithinBudget(String scenario, long budget, RequestCall call) {
+    long allocated = bytesPerCall(call);
+    assertTrue(allocated <= budget, () -> scenario + " allocated " + allocated
+        + " bytes/call, budget is " + budget);
+  }
+
+  /**
+   * Measure rounds until two in a row agree, as the JIT may still remove
+   * allocations after the warm-up, and return the lowest figure.
+   */
+  private static long bytesPerCall(RequestCall call) {
+    try {
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        call.run();
+      }
+      final long threadId = Thread.currentThread().getId();
+      long lowest = Long.MAX_VALUE;
+      long previous = -1;
+      for (int round = 0; round < MAX_ROUNDS; round++) {
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+          call.run();
+        }
+        long bytes = (THREADS.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+        lowest = Math.min(lowest, bytes);
+        if (bytes == previous) {
+          break;
+        }
+        previous = bytes;
+      }
+      return lowest;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean usesCompressedOops() {
+    try {
+      HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      return hotSpot != null && "true".equals(hotSpot.getVMOption("UseCompressedOops").getValue());
+    } catch (IllegalArgumentException e) {
+      // Not a 64-bit JVM
+      return false;
+    }
+  }
+
+  private static Map<String, String> parameter(String name, String type) {
+    Map<String, String> parameter = new LinkedHashMap<>();
+    parameter.put("name", name);
+    parameter.put("type", type);
+    return parameter;
+  }
+
+  private interface RequestCall {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,169 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import com.newrelic.api.agent.Agent;
+import com.newrelic.api.agent.Config;
+import com.newrelic.api.agent.Transaction;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for the quarantine of failing and slow instrumentations.
+ */
+class CircuitBreakerTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // Failure rate 50%, 4 calls, 10 ms mean latency, 1 s window, backoff 2 s up to 5 s.
+  private final CircuitBreaker.Settings settings
+      = new CircuitBreaker.Settings(true, 0.5, 4, 10, 1, 2, 5, 60);
+
+  @Test
+  void tripsOnFailureRateAndBacksOff() {
+    CircuitBreaker breaker = new CircuitBreaker("failing", settings, 0);
+    RuntimeException failure = new IllegalStateException("boom");
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(CircuitBreaker.Permit.CALL, breaker.acquire(i * MILLI));
+      breaker.onFailure(CircuitBreaker.Permit.CALL, failure, i * MILLI, i * MILLI);
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    // The window ends with the next call.
+    breaker.onFailure(CircuitBreaker.Permit.CALL, failure, SECOND, SECOND);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(1, breaker.getQuarantines());
+    assertEquals(CircuitBreaker.Permit.DENIED, breaker.acquire(2 * SECOND));
+
+    // A single probe after the backoff; failing doubles the backoff.
+    assertEquals(CircuitBreaker.Permit.PROBE, breaker.acquire(3 * SECOND));
+    assertEquals(CircuitBreaker.Permit.DENIED, breaker.acquire(3 * SECOND));
+    breaker.onFailure(CircuitBreaker.Permit.PROBE, failure, 3 * SECOND, 3 * SECOND);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.Permit.DENIED, breaker.acquire(6 * SECOND));
+
+    // A successful probe closes the breaker.
+    assertEquals(CircuitBreaker.Permit.PROBE, breaker.acquire(7 * SECOND));
+    breaker.onSuccess(CircuitBreaker.Permit.PROBE, 7 * SECOND, 7 * SECOND + MILLI);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(CircuitBreaker.Permit.CALL, breaker.acquire(7 * SECOND + MILLI));
+    assertEquals(7, breaker.getCalls());
+    assertEquals(6, breaker.getFailures());
+    assertEquals(3, breaker.getSkipped());
+  }
+
+  @Test
+  void tripsOnMeanLatency() {
+    CircuitBreaker breaker = new CircuitBreaker("slow", settings, 0);
+
+    for (int i = 0; i < 4; i++) {
+      breaker.onSuccess(CircuitBreaker.Permit.CALL, i * 20 * MILLI, (i + 1) * 20 * MILLI);
+    }
+    breaker.onSuccess(CircuitBreaker.Permit.CALL, SECOND, SECOND + 20 * MILLI);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(20 * MILLI, breaker.getMaxNanos());
+
+    // A probe that is still too slow keeps the breaker open.
+    assertEquals(CircuitBreaker.Permit.PROBE, breaker.acquire(4 * SECOND));
+    breaker.onSuccess(CircuitBreaker.Permit.PROBE, 4 * SECOND, 4 * SECOND + 20 * MILLI);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  void onlyTheProbeResolvesHalfOpen() {
+    CircuitBreaker breaker = new CircuitBreaker("racing", settings, 0);
+    RuntimeException failure = new IllegalStateException("boom");
+
+    // A call starts while the breaker is closed ...
+    assertEquals(CircuitBreaker.Permit.CALL, breaker.acquire(SECOND - MILLI));
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure(CircuitBreaker.Permit.CALL, failure, i * MILLI, i * MILLI);
+    }
+    breaker.onFailure(CircuitBreaker.Permit.CALL, failure, SECOND, SECOND);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.Permit.PROBE, breaker.acquire(3 * SECOND));
+
+    // ... and ends after the probe was let through: it is only counted.
+    breaker.onSuccess(CircuitBreaker.Permit.CALL, SECOND - MILLI, 3 * SECOND);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.onFailure(CircuitBreaker.Permit.CALL, failure, SECOND - MILLI, 3 * SECOND);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertEquals(1, breaker.getQuarantines());
+
+    // The probe decides: its success closes the breaker at the initial backoff.
+    breaker.onSuccess(CircuitBreaker.Permit.PROBE, 3 * SECOND, 3 * SECOND + MILLI);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(8, breaker.getCalls());
+  }
+
+  @Test
+  void managerContainsFailures() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    ServletInstrumentation failing = new ServletInstrumentation() {
+      @Override
+      public void init(Config config) {
+      }
+
+      @Override
+      public void instrumentRequest(HttpServletRequest request, HttpServletResponse response, Agent agent, Transaction transaction) {
+        calls.incrementAndGet();
+        throw new IllegalArgumentException("boom");
+      }
+
+      @Override
+      public void afterService(HttpServletRequest request, HttpServletResponse response, Agent agent, Transaction transaction) {
+        throw new NoClassDefFoundError("missing");
+      }
+    };
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Collections.singletonList(failing),
+        new CircuitBreaker.Settings(false, 0.5, 1, 10, 0, 60, 60, 60)
+    );
+
+    manager.applyInstrumentations(null, null);
+    manager.applyPostServiceInstrumentations(null, null);
+    manager.applyInstrumentations(null, null);
+
+    CircuitBreaker breaker = manager.getCircuitBreakers().get(0);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(2, calls.get());
+    assertEquals(2, breaker.getFailures());
+    CircuitBreaker afterServiceBreaker = manager.getCircuitBreakers().get(1);
+    assertEquals(failing.getClass().getName() + "#afterService", afterServiceBreaker.getName());
+    assertEquals(1, afterServiceBreaker.getFailures());
+  }
+
+  @Test
+  void defaultAfterServiceIsNotCounted() throws Exception {
+    ServletInstrumentation failing = new ServletInstrumentation() {
+      @Override
+      public void init(Config config) {
+      }
+
+      @Override
+      public void instrumentRequest(HttpServletRequest request, HttpServletResponse response, Agent agent, Transaction transaction) {
+        throw new IllegalArgumentException("boom");
+      }
+    };
+    // Quarantine at a 75% failure rate, evaluated after every call.
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Collections.singletonList(failing),
+        new CircuitBreaker.Settings(true, 0.75, 1, 0, 0, 60, 60, 60)
+    );
+
+    manager.applyInstrumentations(null, null);
+    manager.applyPostServiceInstrumentations(null, null);
+
+    assertEquals(1, manager.getCircuitBreakers().size());
+    CircuitBreaker breaker = manager.getCircuitBreakers().get(0);
+    assertEquals(1, breaker.getCalls());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+}
@@ -0,0 +1,152 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import com.newrelic.api.agent.Transaction;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for naming from route templates in the after-service phase.
+ */
+class RouteTemplateNamerTest {
+
+  private static final String TEMPLATE = "/owners/{ownerId}";
+
+  private final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+      RouteTemplateNamerTest.class.getClassLoader(),
+      new Class<?>[] { HttpServletResponse.class },
+      (proxy, method, args) -> null
+  );
+
+  @Test
+  void namesAfterService() throws Exception {
+    RecordingNamer namer = namer();
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Collections.<ServletInstrumentation>singletonList(namer)
+    );
+    HttpServletRequest request = request("/owners/7", TEMPLATE, new AtomicInteger());
+
+    // The framework sets the attribute while dispatching, after instrumentRequest
+    manager.applyInstrumentations(request, response);
+    assertEquals(Collections.emptyList(), namer.names);
+
+    manager.applyPostServiceInstrumentations(request, response);
+    assertEquals(Collections.singletonList(TEMPLATE), namer.names);
+  }
+
+  @Test
+  void fallsBackToRulesThroughSharedView() throws Exception {
+    RecordingNamer namer = namer();
+    RecordingNamer other = namer();
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Arrays.<ServletInstrumentation>asList(namer, other)
+    );
+    AtomicInteger uriLookups = new AtomicInteger();
+    HttpServletRequest request = request("/jpetstore_web/catalog/Item.jsp", null, uriLookups);
+    RequestView view = manager.createRequestView(request);
+
+    manager.applyInstrumentations(request, view, response);
+    manager.applyPostServiceInstrumentations(request, view, response);
+    assertEquals(Collections.singletonList("/jpetstore_web/catalog/Item"), namer.names);
+    assertEquals(Collections.singletonList("/jpetstore_web/catalog/Item"), other.names);
+    // Both namers fell back to the rules through the view
+    assertEquals(1, uriLookups.get());
+  }
+
+  @Test
+  void countsTemplateNamedRequestsForLoadShedding() throws Exception {
+    Map<String, Object> config = new HashMap<>();
+    config.put("httpservlet_transaction_namer.load_shedding.enabled", true);
+    config.put("httpservlet_transaction_namer.load_shedding.max_requests_per_second", 1000L);
+    config.put("httpservlet_transaction_namer.load_shedding.interval_millis", 3_600_000L);
+    RecordingNamer namer = new RecordingNamer();
+    namer.init(TestConfigs.of(config));
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Collections.<ServletInstrumentation>singletonList(namer)
+    );
+
+    // Requests named from a template count towards the rate threshold too
+    HttpServletRequest request = request("/owners/7", TEMPLATE, new AtomicInteger());
+    for (int i = 0; i < 1500; i++) {
+      manager.applyInstrumentations(request, response);
+      manager.applyPostServiceInstrumentations(request, response);
+    }
+    assertEquals(1500, namer.names.size());
+    assertEquals(LoadShedder.Mode.CACHE_ONLY, namer.getLoadShedder().adjust(1_000_000_000L));
+  }
+
+  @Test
+  void namesWhenServiceThrows() {
+    RecordingNamer namer = namer();
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(
+        Collections.<ServletInstrumentation>singletonList(namer)
+    );
+    HttpServletRequest request = request("/owners/7", TEMPLATE, new AtomicInteger());
+    RequestView view = manager.createRequestView(request);
+
+    // As in HttpServletInstrumentation.service(), around the original method
+    assertThrows(IllegalStateException.class, () -> {
+      manager.applyInstrumentations(request, view, response);
+      try {
+        throw new IllegalStateException("original service failed");
+      } finally {
+        manager.applyPostServiceInstrumentations(request, view, response);
+      }
+    });
+    assertEquals(Collections.singletonList(TEMPLATE), namer.names);
+  }
+
+  private static RecordingNamer namer() {
+    Map<String, Object> config = new HashMap<>();
+    config.put("httpservlet_transaction_namer.name_grouper.enabled", true);
+    config.put("httpservlet_transaction_namer.name_grouper.patterns", "(\\/jpetstore_web\\/[^.]*)\\..*");
+    RecordingNamer namer = new RecordingNamer();
+    namer.init(TestConfigs.of(config));
+    return namer;
+  }
+
+  private static HttpServletRequest request(String uri, String template, AtomicInteger uriLookups) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        RouteTemplateNamerTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getRequestURI":
+              uriLookups.incrementAndGet();
+              return uri;
+            case "getAttribute":
+              return RouteTemplateNamer.SPRING_BEST_MATCHING_PATTERN.equals(args[0]) ? template : null;
+            case "getCookies":
+              return new Cookie[0];
+            default:
+              return null;
+          }
+        }
+    );
+  }
+
+  /**
+   * Records the names instead of setting them on the transaction.
+   */
+  static class RecordingNamer extends RouteTemplateNamer {
+
+    final List<String> names = new ArrayList<>();
+
+    @Override
+    protected void setTransactionName(Transaction transaction, String URI, String txnAppend) {
+      names.add(URI);
+    }
+  }}
@@ -0,0 +1,42 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import com.newrelic.api.agent.Config;
+
+import java.util.Map;
+
+/**
+ * Agent configurations for tests.
+ */
+final class TestConfigs {
+
+  private TestConfigs() {
+  }
+
+  /**
+   * An agent {@link Config} backed by a map of flattened keys.
+   */
+  static Config of(Map<String, Object> values) {
+    return new MapConfig(values);
+  }
+
+  private static final class MapConfig implements Config {
+
+    private final Map<String, Object> values;
+
+    MapConfig(Map<String, Object> values) {
+      this.values = values;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getValue(String key) {
+      return (T) values.get(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getValue(String key, T defaultVal) {
+      return values.containsKey(key) ? (T) values.get(key) : defaultVal;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.newrelic.fit.javax.servlet.http;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+
+/**
+ * Servlet request stubs for tests.
+ */
+final class TestRequests {
+
+  private TestRequests() {
+  }
+
+  /**
+   * A request stub answering the few methods used on the request path.
+   */
+  static HttpServletRequest request(String uri, String queryString, String host) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        TestRequests.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getRequestURI":
+              return uri;
+            case "getQueryString":
+              return queryString;
+            case "getHeader":
+              return "host".equalsIgnoreCase((String) args[0]) ? host : null;
+            case "getCookies":
+              return new Cookie[0];
+            default:
+              return null;
+          }
+        }
+    );
+  }
+}
@@ -2,17 +2,40 @@ package com.newrelic.fit.javax.servlet.http;
 
 import com.newrelic.agent.deps.org.slf4j.Logger;
 import com.newrelic.agent.deps.org.slf4j.LoggerFactory;
+import com.newrelic.api.agent.Agent;
+import com.newrelic.api.agent.NewRelic;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * Test harness for standard "Namer" instrumentation for HTTPServlet-Trasnaction-namer
@@ -90,6 +113,404 @@ class TransactionNamerTest {
     assertEquals(obfuscateURI(URI), "/vehicleimage/NOTAVINHZHH16183F/etc");
   }
 
+  @Test
+  void findQueryParameters() {
+    String[] names = { "categoryId", "q", "missing" };
+    String[] values = new String[names.length];
+    int found = Utilities.findQueryParameters("a=1&categoryId=FISH&q=red+fish%21&categoryId=DOGS", names, values);
+    assertEquals(2, found);
+    assertEquals("FISH", values[0]);
+    assertEquals("red fish!", values[1]);
+    assertNull(values[2]);
+
+    // Escaped keys and keys without a value
+    values = new String[names.length];
+    Utilities.findQueryParameters("categor%79Id=CATS&q", names, values);
+    assertEquals("CATS", values[0]);
+    assertEquals("", values[1]);
+
+    // Escaped keys are decoded while compared, including UTF-8 sequences
+    String[] escapedNames = { "sort order", "caf\u00e9", "100%" };
+    values = new String[escapedNames.length];
+    assertEquals(2, Utilities.findQueryParameters("sort%20orde=x&sort+order=asc&caf%C3%A9=1&caf%C3=2", escapedNames, values));
+    assertEquals("asc", values[0]);
+    assertEquals("1", values[1]);
+    assertNull(values[2]);
+    // A malformed escape is compared as is
+    values = new String[escapedNames.length];
+    Utilities.findQueryParameters("100%=3", escapedNames, values);
+    assertEquals("3", values[2]);
+
+    values = new String[names.length];
+    assertEquals(0, Utilities.findQueryParameters(null, names, values));
+  }
+
+  @Test
+  void normalizeURI() {
+    UriNormalizer normalizer = new UriNormalizer(true, false, true, true, true, true, false);
+    assertEquals("/shop/cart/Item", normalizer.normalize("/shop;jsessionid=ABC123//cart/Item/"));
+    assertEquals("/shop/~user/a%2F", normalizer.normalize("/shop/%7euser/a%2f"));
+    assertEquals("/", normalizer.normalize("/"));
+
+    // Nothing to normalize returns the same instance
+    String URI = "/shop/cart/Item%2F";
+    assertSame(URI, normalizer.normalize(URI));
+
+    // Only ASCII hex digits form an escape
+    String fullWidth = "/shop/%\uFF14\uFF11";
+    assertSame(fullWidth, normalizer.normalize(fullWidth));
+    String arabicIndic = "/shop/%\u0667\u0665";
+    assertSame(arabicIndic, normalizer.normalize(arabicIndic));
+
+    UriNormalizer lowerCase = new UriNormalizer(true, false, true, true, true, true, true);
+    assertEquals("/shop/cart/item", lowerCase.normalize("/Shop/Cart/%49tem"));
+
+    UriNormalizer disabled = new UriNormalizer(false, false, true, true, true, true, true);
+    assertSame(URI, disabled.normalize(URI));
+  }
+
+  @Test
+  void namingPipeline() {
+    NamingPipeline pipeline = new NamingPipeline(
+        Arrays.asList(
+            NamingRule.group("(\\/wps\\/myportal\\/[^!]*)!ut.*"),
+            NamingRule.group("(\\/jpetstore_web\\/accounts\\/)[^\\/]+\\/(.*)"),
+            NamingRule.obfuscate("/AncillaryApplication/<recLoc>/<lastName>"),
+            NamingRule.obfuscate("/Ancillary\\w+/<recLoc,\\w{3}>/<lastName>"),
+            NamingRule.obfuscate("(?<obfuscatedVin>[A-Za-z\\d]{11}\\d{6})")
+        ),
+        Collections.<NamingPipeline.AppendRule>emptyList(),
+        new String[0]
+    );
+
+    // Grouping
+    assertEquals("/wps/myportal/tagging/", pipeline.name("/wps/myportal/tagging/!ut/p/a1/04_Sj9CPy328dh23"));
+    assertEquals("/jpetstore_web/accounts/editAccount", pipeline.name("/jpetstore_web/accounts/account1/editAccount"));
+
+    // Template obfuscation
+    assertEquals("/AncillaryApplication/<recLoc>/<lastName>", pipeline.name("/AncillaryApplication/92Jets/Selanne"));
+    assertEquals("/AncillaryApp/<recLoc>/<lastName>", pipeline.name("/AncillaryApp/TKU/Salo"));
+    assertEquals("/AncillaryApplication/<recLoc>/<lastName>/", pipeline.name("/AncillaryApplication/HEL/Kapanen/"));
+    assertEquals("/AncillaryApplication/<recLoc>/<lastName>/Teemu", pipeline.name("/AncillaryApplication/92Jets/Selanne/Teemu"));
+    assertEquals("/AncillaryApplication/<recLoc>/<lastName>?lang=fi", pipeline.obfuscate("/AncillaryApplication/HEL/Kapanen?lang=fi"));
+    // A segment must match the placeholder regex up to its end
+    assertEquals("/AncillaryApp/TKUX/Salo", pipeline.name("/AncillaryApp/TKUX/Salo"));
+
+    // Named group obfuscation replaces every match
+    assertEquals("/VehicleApplication/<obfuscatedVin>/AnotherSegment/<obfuscatedVin>/TheEnd",
+        pipeline.name("/VehicleApplication/AB1CDE2EFGH567890/AnotherSegment/IJ1KLM2NOPQ567890/TheEnd"));
+
+    // Unchanged names return the same instance
+    String URI = "/static/app.css";
+    assertSame(URI, pipeline.name(URI));
+
+    // Referers are obfuscated without counting rule hits or misses
+    NamingRule vinRule = pipeline.getRules().get(4);
+    long hits = vinRule.getHits();
+    long misses = vinRule.getMisses();
+    HttpServletRequest referred = (HttpServletRequest) Proxy.newProxyInstance(
+        TransactionNamerTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> "getHeader".equals(method.getName())
+            ? "https://shop.example.com/vehicleimage/WV1ZZZ7HZHH161837/etc"
+            : null
+    );
+    assertEquals("https://shop.example.com/vehicleimage/<obfuscatedVin>/etc", pipeline.obfuscateReferer(referred));
+    assertEquals("https://shop.example.com/vehicleimage/<obfuscatedVin>/etc", pipeline.obfuscateReferer(new RequestView(referred)));
+    assertEquals(hits, vinRule.getHits());
+    assertEquals(misses, vinRule.getMisses());
+
+    // Literal pre-check
+    assertEquals("/wps/myportal/", NamingRule.requiredLiteral("(\\/wps\\/myportal\\/[^!]*)!ut.*"));
+    assertNull(NamingRule.requiredLiteral("(\\/wps)?\\/myportal"));
+    assertNull(NamingRule.requiredLiteral("/a|/b"));
+    assertEquals("/ab", NamingRule.requiredLiteral("/abc?"));
+  }
+
+  @Test
+  void namingPipelineFromConfig() {
+    Map<String, Object> config = new HashMap<>();
+    Map<String, Object> group = new HashMap<>();
+    group.put("group", "(\\/jpetstore_web\\/[^.]*)\\..*");
+    Map<String, Object> append = new HashMap<>();
+    append.put("append", "categoryId");
+    config.put("httpservlet_transaction_namer.rules", Arrays.asList(group, append));
+    // Legacy keys are compiled after the rules
+    config.put("httpservlet_transaction_namer.name_obfuscator.enabled", "true");
+    config.put("httpservlet_transaction_namer.name_obfuscator.patterns", "/jpetstore_web/catalog/<item>");
+
+    NamingPipeline pipeline = NamingPipeline.compile(TestConfigs.of(config), "httpservlet_transaction_namer");
+    assertEquals(2, pipeline.getRules().size());
+    assertEquals("/jpetstore_web/catalog/<item>", pipeline.name("/jpetstore_web/catalog/Item.jsp"));
+    assertEquals("query", pipeline.getParameterRules().get(0).getType());
+  }
+
+  @Test
+  void namingSnapshot() throws IOException {
+    Path file = Files.createTempFile("namer", ".snapshot");
+    try {
+      NamingPipeline pipeline = snapshotPipeline();
+      NameCache cache = new NameCache(100);
+      pipeline.setCache(cache);
+      pipeline.name("/jpetstore_web/catalog/Item.jsp");
+      pipeline.name("/jpetstore_web/catalog/Item.jsp");
+      pipeline.name("/static/app.css");
+      new NamingSnapshot(file, 1, pipeline, cache).write();
+      // URIs are only stored as hashes
+      assertFalse(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1).contains("Item.jsp"));
+
+      // Only the hottest name and the rule statistics are restored, and
+      // survive being written again before they are looked up
+      NamingPipeline restarted = snapshotPipeline();
+      NameCache warmCache = new NameCache(100);
+      assertEquals(1, new NamingSnapshot(file, 1, restarted, warmCache).load());
+      new NamingSnapshot(file, 1, restarted, warmCache).write();
+      warmCache = new NameCache(100);
+      NamingPipeline reloaded = snapshotPipeline();
+      reloaded.setCache(warmCache);
+      assertEquals(1, new NamingSnapshot(file, 1, reloaded, warmCache).load());
+      assertEquals(2, restarted.getRules().get(0).getHits());
+      // A restored name counts a hit for the rule that produced it
+      assertEquals("/jpetstore_web/catalog/Item", reloaded.name("/jpetstore_web/catalog/Item.jsp"));
+      assertEquals(3, reloaded.getRules().get(0).getHits());
+      assertNull(warmCache.get("/static/app.css"));
+
+      // Snapshots of other rules are ignored
+      NamingPipeline changed = new NamingPipeline(
+          Arrays.asList(NamingRule.group("(\\/jpetstore\\/[^.]*)\\..*")),
+          Collections.<NamingPipeline.AppendRule>emptyList(),
+          new String[0]
+      );
+      assertEquals(0, new NamingSnapshot(file, 1, changed, new NameCache(100)).load());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  void loadShedding() throws Exception {
+    // 1000 requests/s or 100 us per request, recover after 2 calm intervals
+    LoadShedder shedder = new LoadShedder(1000, 100, 1, 0.5, 2, LoadShedder.Mode.PREFIX_ONLY, "/degraded");
+    long second = 1_000_000_000L;
+
+    for (int i = 0; i < 1500; i++) {
+      shedder.onRequest();
+    }
+    assertEquals(LoadShedder.Mode.CACHE_ONLY, shedder.adjust(second));
+    shedder.recordCost(300_000);
+    assertEquals(LoadShedder.Mode.PREFIX_ONLY, shedder.adjust(second));
+    shedder.recordCost(300_000);
+    assertEquals(LoadShedder.Mode.PREFIX_ONLY, shedder.adjust(second));
+
+    // Between the recovery level and the threshold the mode is kept
+    for (int i = 0; i < 800; i++) {
+      shedder.onRequest();
+    }
+    assertEquals(LoadShedder.Mode.PREFIX_ONLY, shedder.adjust(second));
+    assertEquals(LoadShedder.Mode.PREFIX_ONLY, shedder.adjust(second));
+    assertEquals(LoadShedder.Mode.CACHE_ONLY, shedder.adjust(second));
+    assertEquals(LoadShedder.Mode.CACHE_ONLY, shedder.adjust(second));
+    assertEquals(LoadShedder.Mode.FULL, shedder.adjust(second));
+
+    // Sampled requests are named with all rules while degraded
+    Map<String, Object> config = new HashMap<>();
+    config.put("httpservlet_transaction_namer.name_grouper.enabled", true);
+    config.put("httpservlet_transaction_namer.name_grouper.patterns", "(\\/jpetstore_web\\/[^.]*)\\..*");
+    config.put("httpservlet_transaction_namer.load_shedding.enabled", true);
+    config.put("httpservlet_transaction_namer.load_shedding.max_requests_per_second", 1000L);
+    config.put("httpservlet_transaction_namer.load_shedding.sample_rate", 1L);
+    config.put("httpservlet_transaction_namer.load_shedding.interval_millis", 3_600_000L);
+    TransactionNamer namer = new TransactionNamer();
+    namer.init(TestConfigs.of(config));
+    for (int i = 0; i < 1500; i++) {
+      namer.getLoadShedder().onRequest();
+    }
+    assertEquals(LoadShedder.Mode.CACHE_ONLY, namer.getLoadShedder().adjust(second));
+    Agent agent = NewRelic.getAgent();
+    namer.instrumentRequest(TestRequests.request("/jpetstore_web/catalog/Item.jsp", null, null), null, agent, agent.getTransaction());
+    assertEquals(1, namer.getPipeline().getRules().get(0).getHits());
+
+    // Cheap naming strategies
+    NamingPipeline pipeline = snapshotPipeline();
+    assertNull(pipeline.cachedName("/jpetstore_web/catalog/Item.jsp"));
+    pipeline.setCache(new NameCache(100));
+    pipeline.name("/jpetstore_web/catalog/Item.jsp");
+    assertEquals("/jpetstore_web/catalog/Item", pipeline.cachedName("/jpetstore_web/catalog/Item.jsp"));
+    assertEquals("/jpetstore_web/", pipeline.prefixName("/jpetstore_web/help.html"));
+    assertNull(pipeline.prefixName("/static/app.css"));
+  }
+
+  @Test
+  void valueBucketing() {
+    // Recompute the top values on the calling thread
+    ValueBucketer topK = new ValueBucketer(null, 0, 2, Runnable::run);
+    for (int i = 0; i < 100; i++) {
+      topK.bucket("shop.example.com");
+      topK.bucket("api.example.com");
+      assertEquals(ValueBucketer.OTHER, topK.bucket("customer" + i + ".example.com"));
+    }
+    assertEquals("shop.example.com", topK.bucket("shop.example.com"));
+    assertEquals("api.example.com", topK.bucket("api.example.com"));
+
+    // Frequent values survive a stream of distinct ones
+    ValueBucketer hosts = new ValueBucketer(null, 0, 2, Runnable::run);
+    for (int i = 0; i < 50_000; i++) {
+      hosts.bucket("shop.example.com");
+      if (i % 2 == 0) {
+        hosts.bucket("api.example.com");
+      }
+      hosts.bucket("customer" + i + ".example.com");
+    }
+    assertEquals(new HashSet<>(Arrays.asList("shop.example.com", "api.example.com")), hosts.getTopValues());
+
+    ValueBucketer allowed = new ValueBucketer(Arrays.asList("FISH", "DOGS"), 3, 0);
+    assertEquals("FIS", allowed.bucket("FISH"));
+    assertEquals(ValueBucketer.OTHER, allowed.bucket("CATS"));
+
+    Map<String, Object> config = new HashMap<>();
+    Map<String, Object> append = new HashMap<>();
+    append.put("append", "host");
+    append.put("source", "header");
+    append.put("top_k", 10);
+    append.put("max_length", "8");
+    config.put("httpservlet_transaction_namer.rules", Collections.singletonList(append));
+    NamingPipeline pipeline = NamingPipeline.compile(TestConfigs.of(config), "httpservlet_transaction_namer");
+    ValueBucketer bucketer = pipeline.getParameterRules().get(0).getBucketer();
+    bucketer.bucket("customer1.example.com");
+    // Normally recomputed on the background thread
+    bucketer.recompute();
+    assertEquals("customer", bucketer.bucket("customer1.example.com"));
+    assertEquals(Collections.singleton("customer"), bucketer.getTopValues());
+  }
+
+  @Test
+  void shadowEvaluation() {
+    NamingPipeline live = snapshotPipeline();
+    NamingPipeline candidate = new NamingPipeline(
+        Arrays.asList(NamingRule.group("^(/jpetstore_web/catalog/[^.]*)")),
+        Collections.<NamingPipeline.AppendRule>emptyList(),
+        new String[0]
+    );
+    ShadowEvaluator shadow = new ShadowEvaluator(live, candidate, 1.0, 2, 10);
+
+    shadow.offer("/jpetstore_web/catalog/Item.jsp", live.name("/jpetstore_web/catalog/Item.jsp"));
+    shadow.offer("/jpetstore_web/help.html", live.name("/jpetstore_web/help.html"));
+    shadow.offer("/static/app.css", live.name("/static/app.css"));
+    shadow.drain();
+
+    assertEquals(2, shadow.getSamples());
+    assertEquals(1, shadow.getDropped());
+    assertEquals(1, shadow.getAgreements());
+    assertEquals(1, shadow.getDisagreements().size());
+    ShadowEvaluator.Disagreement disagreement = shadow.getDisagreements().get(0);
+    assertEquals("/jpetstore_web/help", disagreement.getLiveName());
+    assertEquals("/jpetstore_web/help.html", disagreement.getCandidateName());
+    assertEquals("live name /jpetstore_web/help (1 samples)", disagreement.toString());
+
+    // Shadow evaluation does not count live rule hits
+    assertEquals(2, live.getRules().get(0).getHits());
+  }
+
+  @Test
+  void monitor() throws Exception {
+    Map<String, Object> config = new HashMap<>();
+    config.put("httpservlet_transaction_namer.name_grouper.enabled", true);
+    config.put("httpservlet_transaction_namer.name_grouper.patterns", "(\\/jpetstore_web\\/[^.]*)\\..*");
+    config.put("httpservlet_transaction_namer.name_cache.enabled", true);
+    TransactionNamer namer = new TransactionNamer();
+    namer.init(TestConfigs.of(config));
+    NamingPipeline pipeline = namer.getPipeline();
+    pipeline.name("/jpetstore_web/help.html");
+    pipeline.name("/jpetstore_web/help");
+
+    List<ServletInstrumentation> instrumentations = Collections.<ServletInstrumentation>singletonList(namer);
+    ServletInstrumentationManager manager = new ServletInstrumentationManager(instrumentations);
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    ObjectName name = new ObjectName(ServletInstrumentationMXBean.OBJECT_NAME);
+    server.registerMBean(new ServletInstrumentationMonitor(instrumentations, manager.getCircuitBreakers()), name);
+
+    CompositeData[] rules = (CompositeData[]) server.getAttribute(name, "Rules");
+    assertEquals(1, rules.length);
+    assertEquals(1L, rules[0].get("hits"));
+    assertEquals(1L, rules[0].get("misses"));
+
+    // Cached names count as hits of the rules that produced them
+    pipeline.name("/jpetstore_web/help.html");
+    pipeline.name("/jpetstore_web/help");
+    assertEquals("/jpetstore_web/help", pipeline.cachedName("/jpetstore_web/help.html"));
+    rules = (CompositeData[]) server.getAttribute(name, "Rules");
+    assertEquals(3L, rules[0].get("hits"));
+    assertEquals(1L, rules[0].get("misses"));
+    assertEquals(1, ((CompositeData[]) server.getAttribute(name, "Caches")).length);
+
+    // Turning a rule off clears the cache
+    server.invoke(name, "setRuleEnabled",
+        new Object[] { TransactionNamer.class.getName(), 0, false },
+        new String[] { String.class.getName(), int.class.getName(), boolean.class.getName() });
+    assertEquals(0, pipeline.getCache().size());
+    assertEquals("/jpetstore_web/help.html", pipeline.name("/jpetstore_web/help.html"));
+
+    server.invoke(name, "resetStatistics", new Object[0], new String[0]);
+    assertEquals(0, pipeline.getRules().get(0).getHits());
+  }
+
+  @Test
+  void requestView() {
+    AtomicInteger headerLookups = new AtomicInteger();
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        TransactionNamerTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getRequestURI":
+              return "/jpetstore_web//catalog/Item.jsp";
+            case "getQueryString":
+              return "categoryId=FISH&q=a%20b&categoryId=DOGS";
+            case "getHeader":
+              headerLookups.incrementAndGet();
+              return "host".equalsIgnoreCase((String) args[0]) ? "shop.example.com" : null;
+            case "getCookies":
+              return new Cookie[] { new Cookie("session", "1"), new Cookie("SESSION", "2") };
+            default:
+              return null;
+          }
+        }
+    );
+    RequestView view = new RequestView(request);
+
+    assertEquals(3, view.getSegmentCount());
+    assertEquals("jpetstore_web", view.getSegment(0));
+    assertEquals("Item.jsp", view.getSegment(2));
+    assertEquals(16, view.getSegmentStart(1));
+
+    assertEquals("2", view.getCookie("Session"));
+    String[] names = { "categoryId", "q", "view" };
+    String[] values = view.getQueryParameters(names);
+    assertEquals(Arrays.asList("FISH", "a b", null), Arrays.asList(values));
+    assertSame(values, view.getQueryParameters(names));
+
+    assertEquals("shop.example.com", view.getHeader("Host"));
+    assertEquals("shop.example.com", view.getHeader("host"));
+    assertNull(view.getHeader("referer"));
+    assertNull(view.getHeader("referer"));
+    assertEquals(2, headerLookups.get());
+
+    // Views are only created when two instrumentations can share them
+    TransactionNamer namer = new TransactionNamer();
+    assertNull(new ServletInstrumentationManager(
+        Collections.<ServletInstrumentation>singletonList(namer)).createRequestView(request));
+    assertNotNull(new ServletInstrumentationManager(
+        Arrays.<ServletInstrumentation>asList(namer, new RouteTemplateNamer())).createRequestView(request));
+  }
+
+  private NamingPipeline snapshotPipeline() {
+    return new NamingPipeline(
+        Arrays.asList(NamingRule.group("(\\/jpetstore_web\\/[^.]*)\\..*")),
+        Collections.<NamingPipeline.AppendRule>emptyList(),
+        new String[0]
+    );
+  }
+
   String obfuscateURI(String URI) {
     LOGGER.debug("HTTPServlet-transaction-namer - Name Obfuscator - testing URI: " + URI);
 